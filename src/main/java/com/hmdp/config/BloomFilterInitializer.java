@@ -0,0 +1,65 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 启动时将店铺、笔记、用户的id加载到布隆过滤器中
+ */
+@Slf4j
+@Order(0)
+@Component
+public class BloomFilterInitializer implements ApplicationRunner {
+    //每次从数据库读取的id数量
+    private static final int BATCH_SIZE = 1000;
+
+    @Resource
+    RedisBloomFilter bloomFilter;
+    @Resource
+    IShopService shopService;
+    @Resource
+    IBlogService blogService;
+    @Resource
+    IUserService userService;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        load(shopService, RedisConstants.BLOOM_SHOP_KEY);
+        load(blogService, RedisConstants.BLOOM_BLOG_KEY);
+        load(userService, RedisConstants.BLOOM_USER_KEY);
+    }
+
+    /**
+     * 按id顺序分批读取表中所有id并加入布隆过滤器
+     * @param service 表对应的service
+     * @param filterKey 布隆过滤器的key
+     */
+    private <T> void load(IService<T> service, String filterKey) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Object> ids = service.listObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId)
+                    .orderByAsc("id").last("limit " + BATCH_SIZE));
+            if (ids.isEmpty()) break;
+            bloomFilter.addAll(filterKey, ids);
+            total += ids.size();
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+        bloomFilter.markReady(filterKey);
+        log.info("布隆过滤器{}加载完成，共{}条", filterKey, total);
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.config;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopRanking;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 启动时的缓存预热
+ * 1.按id分批读取店铺，通过pipeline写入店铺缓存和店铺的GEO坐标
+ * 2.开启本地空间索引时，同时把店铺坐标加入进程内的索引
+ * 3.重建店铺按评分、销量、均价、评论数的排名，全部写入后替换原有的排名
+ * 4.构建店铺名称的倒排索引
+ * 5.加载店铺类型列表缓存
+ * ApplicationRunner执行完之后spring boot才会将应用的就绪状态置为ACCEPTING_TRAFFIC，
+ * 负载均衡通过/actuator/health/readiness判断，预热完成前不会将请求转发到本节点
+ */
+@Slf4j
+@Order(1)
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+    @Resource
+    IShopService shopService;
+    @Resource
+    IShopTypeService shopTypeService;
+    @Resource
+    CacheClient cacheClient;
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    ShopGeoIndex shopGeoIndex;
+    @Resource
+    ShopRanking shopRanking;
+    @Resource
+    ShopSearchIndex shopSearchIndex;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long begin = System.currentTimeMillis();
+        warmUpShops();
+        shopTypeService.queryTypeList();
+        log.info("缓存预热完成，耗时{}ms", System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 按id顺序分批读取店铺，每批的店铺缓存和GEO坐标各通过一次pipeline写入redis
+     */
+    private void warmUpShops() {
+        int total = shopService.count();
+        int loaded = 0;
+        long lastId = 0;
+        ShopRanking.Rebuild rankRebuild = shopRanking.rebuild();
+        while (true) {
+            List<Shop> shops = shopService.lambdaQuery()
+                    .gt(Shop::getId, lastId)
+                    .orderByAsc(Shop::getId)
+                    .last("limit " + SystemConstants.WARM_UP_BATCH_SIZE)
+                    .list();
+            if (shops.isEmpty()) break;
+            //店铺缓存，与queryById使用相同的格式和TTL，只填充不存在的key
+            Map<Long, Shop> shopMap = shops.stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+            cacheClient.setBatchIfAbsent(RedisConstants.CACHE_SHOP_KEY, shopMap,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            //按照类型分组写入GEO坐标
+            loadShopGeo(shops);
+            rankRebuild.addAll(shops);
+            shopSearchIndex.addAll(shops);
+            if (SystemConstants.SHOP_GEO_LOCAL_INDEX) {
+                shopGeoIndex.addAll(shops);
+            }
+            loaded += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+            log.info("店铺缓存预热进度：{}/{}", loaded, total);
+        }
+        if (SystemConstants.SHOP_GEO_LOCAL_INDEX) {
+            shopGeoIndex.markReady();
+        }
+        rankRebuild.finish();
+        shopSearchIndex.markReady();
+    }
+
+    private void loadShopGeo(List<Shop> shops) {
+        Map<Long, Map<String, Point>> locations = new HashMap<>();
+        for (Shop shop : shops) {
+            if (shop.getX() == null || shop.getY() == null) continue;
+            locations.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                    .put(shop.getId().toString(), new Point(shop.getX(), shop.getY()));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            locations.forEach((typeId, points) -> conn.geoAdd(RedisConstants.SHOP_GEO_KEY + typeId, points));
+            return null;
+        });
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisLockFactory;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.Arrays;
+
+/**
+ * redis发布订阅监听配置
+ */
+@Configuration
+public class RedisListenerConfig {
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory, CacheClient cacheClient, SeckillStock seckillStock,
+            RedisLockFactory redisLockFactory, ShopGeoIndex shopGeoIndex,
+            ShopSearchIndex shopSearchIndex) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //订阅缓存失效频道，清除本节点的一级缓存
+        container.addMessageListener(cacheClient, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        //订阅优惠券售罄和补充库存频道，更新本节点的售罄标记
+        container.addMessageListener(seckillStock, Arrays.asList(
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL),
+                new ChannelTopic(RedisConstants.SECKILL_REPLENISH_CHANNEL)));
+        //订阅分布式锁释放的频道，唤醒本节点等待锁的线程
+        container.addMessageListener(redisLockFactory, new PatternTopic(RedisConstants.LOCK_CHANNEL_PREFIX + "*"));
+        //订阅店铺变化频道，更新本节点的店铺空间索引
+        if (SystemConstants.SHOP_GEO_LOCAL_INDEX) {
+            container.addMessageListener(shopGeoIndex, new ChannelTopic(RedisConstants.SHOP_GEO_CHANGED_CHANNEL));
+        }
+        //订阅店铺变化频道，更新本节点的店铺名称索引
+        container.addMessageListener(shopSearchIndex, new ChannelTopic(RedisConstants.SHOP_SEARCH_CHANGED_CHANNEL));
+        return container;
+    }
+}
@@ -1,12 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -65,6 +62,8 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param radius 查询半径(米)，为空时使用默认半径
+     * @param sort 排序方式：distance、score、sold、price、comments，为空时按距离
      * @return 商铺列表
      */
     @GetMapping("/of/type")
@@ -72,10 +71,30 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x", required = false) Double x,
-            @RequestParam(value = "y", required = false) Double y
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "radius", required = false) Double radius,
+            @RequestParam(value = "sort", required = false) String sort
     ) {
 
-        return shopService.queryShopByType(typeId, current, x, y);
+        return shopService.queryShopByType(typeId, current, x, y, radius, sort);
+    }
+
+    /**
+     * 根据商铺类型滚动查询附近的商铺
+     * @param typeId 商铺类型
+     * @param cursor 上一页返回的游标，第一页不传
+     * @param radius 查询半径(米)，为空时使用默认半径
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result scrollShopByType(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "radius", required = false) Double radius,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.scrollShopByType(typeId, x, y, radius, cursor);
     }
 
     /**
@@ -89,11 +108,16 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
+    }
+
+    /**
+     * 店铺名称搜索框的自动补全，支持汉字和拼音
+     * @param prefix 已输入的内容
+     * @return 店铺名称列表
+     */
+    @GetMapping("/of/name/suggest")
+    public Result suggestShopName(@RequestParam("prefix") String prefix) {
+        return shopService.suggestShopName(prefix);
     }
 }
@@ -9,6 +9,8 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -32,6 +34,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private RedisBloomFilter bloomFilter;
+
     /**
      * 发送手机验证码
      */
@@ -87,6 +92,10 @@ public class UserController {
     // UserController 根据id查询用户
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
+        // 布隆过滤器判断用户一定不存在
+        if (!bloomFilter.mightContain(RedisConstants.BLOOM_USER_KEY, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = userService.getById(userId);
         if (user == null) {
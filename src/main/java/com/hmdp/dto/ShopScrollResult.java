@@ -0,0 +1,12 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ShopScrollResult {
+    private List<?> list;
+    //下一页的游标，为空说明没有更多数据
+    private String cursor;
+}
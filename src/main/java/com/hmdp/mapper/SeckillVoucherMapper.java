@@ -2,6 +2,7 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 
 /**
  * <p>
@@ -13,4 +14,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 一次扣减同一张优惠券的多个库存，库存不足时不扣减
+     * @return 影响的行数
+     */
+    int decreaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
 }
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 一条INSERT IGNORE语句批量插入订单，主键或(user_id, voucher_id)重复的订单会被忽略，
+     * 调用方需要区分主键冲突
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -18,5 +18,11 @@ public interface IShopService extends IService<Shop> {
 
     void update(Shop shop);
 
-    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double radius, String sort);
+
+    Result scrollShopByType(Integer typeId, Double x, Double y, Double radius, String cursor);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggestShopName(String prefix);
 }
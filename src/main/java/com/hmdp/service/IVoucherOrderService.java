@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,5 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void GetcreateVoucherOrder(VoucherOrder VoucherOrder);
+    void createVoucherOrders(List<VoucherOrder> orders);
 }
@@ -15,6 +15,7 @@ import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -26,6 +27,7 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -47,6 +49,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     FollowServiceImpl followService;
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    RedisBloomFilter bloomFilter;
 
     /**
      * 分页查询笔记，按照点赞数排序
@@ -61,11 +65,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        // 批量查询用户
+        queryBlogUser(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -76,11 +78,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断笔记一定不存在，不再查询数据库
+        if (!bloomFilter.mightContain(RedisConstants.BLOOM_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在！");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
-        queryBlogUser(blog);
+        queryBlogUser(Collections.singletonList(blog));
         isBlogLiked(blog);
         return Result.ok(blog);
     }
@@ -139,6 +145,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(list);
     }
 
+    /**
+     * 保存笔记，并将id加入布隆过滤器
+     * @param blog 笔记
+     * @return 是否成功
+     */
+    @Override
+    public boolean save(Blog blog) {
+        boolean success = super.save(blog);
+        if(success){
+            bloomFilter.add(RedisConstants.BLOOM_BLOG_KEY, blog.getId());
+        }
+        return success;
+    }
+
     @Override
     public Result saveBlog(Blog blog) {
         // 获取登录用户
@@ -189,9 +209,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = lambdaQuery().in(Blog::getId, ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
+        // 5.1.批量查询blog有关的用户
+        queryBlogUser(blogs);
         for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            queryBlogUser(blog);
             // 5.2.查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -207,14 +227,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     /**
-     * 封装blog与用户相关的信息
-     * @param blog
+     * 封装blog与用户相关的信息，所有用户通过一次批量查询获得
+     * @param blogs
      */
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void queryBlogUser(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOByIds(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user == null) continue;
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
     }
 
     /**
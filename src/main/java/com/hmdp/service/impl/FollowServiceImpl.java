@@ -1,11 +1,9 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.api.R;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -17,6 +15,7 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -93,12 +92,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         ////对两个用户的关注集合求交集
         Set<String> Commons = stringRedisTemplate.opsForSet().intersect(Key1, Key2);
         log.info("Following:"+Commons.toString());
-        //通过交集查询的用户id获取用户信息
-        List<UserDTO> userDTOS = Commons.stream().map(uidStr -> {
-            Long uid = Long.valueOf(uidStr);
-            User user = userService.getById(uid);
-            return BeanUtil.copyProperties(user, UserDTO.class);
-        }).collect(Collectors.toList());
+        //通过交集查询的用户id批量获取用户信息
+        List<Long> ids = Commons.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOByIds(ids).values());
         log.info("users:"+userDTOS);
         return Result.ok(userDTOS);
     }
@@ -1,37 +1,48 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.codec.Base64;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopRanking;
+import com.hmdp.utils.ShopSearchIndex;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -49,6 +60,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     StringRedisTemplate stringRedisTemplate;
     @Resource
     CacheClient cacheClient;
+    @Resource
+    RedisBloomFilter bloomFilter;
+    @Resource
+    CacheInvalidator cacheInvalidator;
+    @Resource
+    ShopGeoIndex shopGeoIndex;
+    @Resource
+    ShopRanking shopRanking;
+    @Resource
+    ShopSearchIndex shopSearchIndex;
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    /**
+     * 查询店铺缓存前先经过布隆过滤器
+     */
+    @PostConstruct
+    private void init() {
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, RedisConstants.BLOOM_SHOP_KEY);
+    }
+
     @Override
     public Result queryById(Long id) {
 //        Function<Long,Shop> function = (Long d) ->{
@@ -68,194 +100,333 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return 商户对象
      */
     public Shop getShopByMutex(Long id){
-        //用key查询redis是否存在缓存
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String shopStr = stringRedisTemplate.opsForValue().get(key);
-        //缓存命中直接将数据返回
-        if(StrUtil.isNotBlank(shopStr)) {
-            return JSONUtil.toBean(shopStr, Shop.class);
-        }
-        //判断命中的值是否是空值,为空则解决缓存击穿
-        if ("".equals(shopStr)) {
-            //返回一个错误信息
-            return null;
-        }
-        //未命中,进行缓存重构
-        Shop shop = null;
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        try {
-            Boolean isLock = getLock(lockKey);
-            //没有拿到锁，说明有其他线程在重构缓存
-            if(!isLock){
-                Thread.sleep(50);
-                //递归重试，直到拿到锁的线程重构缓存成功
-                return getShopByMutex(id);
-            }
-            //拿到锁开始重构缓存
-            shop = getById(id);
-            //模拟重建缓存
-            Thread.sleep(200);
-            //数据库不存在数据向redis缓存空值解决缓存穿透
-            if(shop == null){
-                stringRedisTemplate.opsForValue().set(key,""
-                        ,RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-            //缓存重构
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop)
-                    ,RedisConstants.CACHE_SHOP_TTL,TimeUnit.MINUTES);
-        }catch (Exception e){
-            throw new RuntimeException(e);
-        }finally {
-            //无论重构是否成功都需要释放锁
-            unlock(lockKey);
-        }
-        return shop;
+        return cacheClient.queryWithMutex(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById,RedisConstants.CACHE_SHOP_TTL,TimeUnit.MINUTES);
     }
 
     /**
-     * 设置逻辑过期时间解决缓存击穿
+     * 设置逻辑过期时间解决缓存击穿，并按XFetch算法在过期前概率性地提前刷新
      * @param id
      * @return
      */
-    //线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     public Shop queryWithLogicalExpire(Long id){
-        //用key查询redis是否存在缓存
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String shopStr = stringRedisTemplate.opsForValue().get(key);
-        //缓存未命中直接返回错误信息
-        if(StrUtil.isBlank(shopStr)) {
-            return null;
-        }
-
-        //命中之后我们需要查看存入redis的过期时间是否过期。
-        RedisData redisData = JSONUtil.toBean(shopStr,RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        /*判断逻辑过期时间是否过期：
-            1.未过期直接将数据返回
-            2.过期则将数据返回并开启一个线程来更新缓存
-        */
-        //未过期
-        if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
-            return shop;
-        }
-        //过期
-        log.debug("缓存过期");
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        //获得锁则将开启一个新的线程缓存进行重建
-        if(getLock(lockKey)){
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    saveShop2Redis(id, RedisConstants.CACHE_SHOP_TTL);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unlock(lockKey);
-                }
-            });
-        }
-        //未获得锁则直接返回旧数据
-        return shop;
-
+        return cacheClient.queryWithEarlyRefresh(
+                RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById,RedisConstants.CACHE_SHOP_TTL,TimeUnit.SECONDS);
     }
 
     /**
-     * 缓存预热先向数据库中添加缓存并设置逻辑过期时间
+     * 缓存预热先向数据库中添加缓存并设置逻辑过期时间，同时记录查询数据库的耗时供提前刷新使用
      * @param id
      * @param expireSeconds
      */
-    public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
-        log.debug("缓存过期，重建缓存。。。");
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
+    public void saveShop2Redis(Long id, Long expireSeconds) {
+        long begin = System.nanoTime();
         Shop shop = getById(id);
-        Thread.sleep(200);
-        //封装redis数据
-        RedisData data = new RedisData();
-        data.setData(shop);
-        //逻辑过期时间
-        data.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(data));
+        long delta = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop,
+                expireSeconds, TimeUnit.SECONDS, delta);
     }
 
     /**
-     * 获取互斥锁
-     * @param key
-     * @return
+     * 新增店铺，并将id加入布隆过滤器
+     * @param shop 店铺数据
+     * @return 是否成功
      */
-    public Boolean getLock(String key){
-        //只有redis中不存在该key时才返回true
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent
-                        (key, "1",RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        if(flag == null){
-            return false;
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = super.save(shop);
+        if(success){
+            bloomFilter.add(RedisConstants.BLOOM_SHOP_KEY, shop.getId());
+            shopGeoIndex.changed(shop.getId());
+            shopRanking.changed(shop.getId(), null);
+            shopSearchIndex.changed(shop.getId());
         }
-        return flag;
+        return success;
     }
 
     /**
-     * 释放互斥锁
-     * @param key
+     * 删除店铺并删除缓存，布隆过滤器无法删除id，由缓存空值兜底
+     * @param id 店铺id
+     * @return 是否成功
      */
-    public void unlock(String key){
-        stringRedisTemplate.delete(key);
+    @Override
+    public boolean removeById(Serializable id) {
+        //删除前记录店铺类型，用于从该类型的排名中移除
+        Shop shop = getById(id);
+        boolean success = super.removeById(id);
+        if(success){
+            cacheInvalidator.deleteAfterCommit(RedisConstants.CACHE_SHOP_KEY + id);
+            shopGeoIndex.changed(Long.valueOf(id.toString()));
+            shopRanking.changed(Long.valueOf(id.toString()), shop == null ? null : shop.getTypeId());
+            shopSearchIndex.changed(Long.valueOf(id.toString()));
+        }
+        return success;
     }
 
     @Override
     @Transactional
     public void update(Shop shop) {
         if(shop.getId() == null) throw new RuntimeException("店铺id不能为空");
+        //修改类型时记录旧类型，用于从旧类型的排名中移除
+        Long oldTypeId = null;
+        if (shop.getTypeId() != null) {
+            Shop old = getById(shop.getId());
+            //店铺不存在时与updateById一样不做任何修改
+            if (old == null) return;
+            oldTypeId = old.getTypeId();
+        }
         //存入数据库
         updateById(shop);
-        //删除缓存保持数据的一致性
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        //事务提交后删除缓存并延迟再删除一次，保持数据的一致性
+        cacheInvalidator.deleteAfterCommit(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        shopGeoIndex.changed(shop.getId());
+        shopRanking.changed(shop.getId(), oldTypeId);
+        shopSearchIndex.changed(shop.getId());
     }
 
+    /**
+     * 按类型分页查询店铺
+     * 1.不传坐标时按排序维度读取排名，未指定维度时按数据库顺序分页
+     * 所有分支都返回店铺列表
+     * 2.传入坐标时查询半径内的店铺，按距离或指定维度排序
+     * @param sort 排序维度：distance、score、sold、price、comments，为空时按距离
+     */
     @Override
-    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
-        //为获取位置坐标按照分页查询返回
-        if(x == null || y == null){
-            return Result.ok(lambdaQuery().eq(Shop::getTypeId,typeId)
-                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE)));
-        }
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Double radius, String sort) {
+        ShopRanking.SortBy sortBy = ShopRanking.SortBy.of(sort);
+        if (sortBy == null) return Result.fail("不支持的排序方式：" + sort);
         //分页起始记录和终止记录
         int begin = (current-1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        //为获取位置坐标按照分页查询返回
+        if(x == null || y == null){
+            if (sortBy == ShopRanking.SortBy.DISTANCE) {
+                return Result.ok(lambdaQuery().eq(Shop::getTypeId,typeId)
+                        .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE)).getRecords());
+            }
+            List<Long> ids = shopRanking.page(typeId.longValue(), sortBy, begin, end);
+            //排名尚未建立时从数据库排序查询
+            if (ids == null) {
+                return Result.ok(lambdaQuery().eq(Shop::getTypeId, typeId)
+                        .orderBy(true, !sortBy.isDesc(), sortBy.getColumn())
+                        .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE)).getRecords());
+            }
+            Map<String, Double> idMap = new LinkedHashMap<>(ids.size());
+            ids.forEach(id -> idMap.put(id.toString(), null));
+            return Result.ok(hydrate(idMap));
+        }
+        //按距离排序只需要前end个店铺，按其他维度排序需要半径内的全部候选店铺
+        int limit = sortBy == ShopRanking.SortBy.DISTANCE ? end : SystemConstants.SHOP_GEO_RESULT_LIMIT;
+        Map<String, Double> distanceMap = nearby(typeId, x, y, geoRadius(radius), limit);
+        if (sortBy != ShopRanking.SortBy.DISTANCE) {
+            Map<Long, Double> candidates = new LinkedHashMap<>(distanceMap.size());
+            distanceMap.forEach((id, distance) -> candidates.put(Long.valueOf(id), distance));
+            Map<String, Double> ranked = new LinkedHashMap<>(end);
+            shopRanking.topK(typeId.longValue(), sortBy, candidates, end)
+                    .forEach(id -> ranked.put(id.toString(), candidates.get(id)));
+            distanceMap = ranked;
+        }
+        //说明已经到最后一页
+        if(distanceMap.size() <= begin) return Result.ok(Collections.emptyList());
+        Map<String, Double> pageMap = new LinkedHashMap<>(distanceMap.size() - begin);
+        distanceMap.entrySet().stream().skip(begin).forEach(e -> pageMap.put(e.getKey(), e.getValue()));
+        return Result.ok(hydrate(pageMap));
+    }
+
+    /**
+     * 查询半径内最近的limit个店铺，本地空间索引构建完成时在进程内查询，否则查询redis GEO
+     * @return 店铺id -> 距离(米)，按距离从近到远
+     */
+    private Map<String, Double> nearby(Integer typeId, double x, double y, double radius, int limit) {
+        //本地空间索引构建完成时直接在进程内查询
+        if (SystemConstants.SHOP_GEO_LOCAL_INDEX && shopGeoIndex.isReady()) {
+            ShopGeoIndex.Hits hits = shopGeoIndex.search(typeId.longValue(), x, y, radius, limit);
+            Map<String, Double> distanceMap = new LinkedHashMap<>(hits.size());
+            for (int i = 0; i < hits.size(); i++) {
+                distanceMap.put(String.valueOf(hits.ids[i]), hits.distances[i]);
+            }
+            return distanceMap;
+        }
         //从redis中查询在当前用户坐标附件的商铺，按照距离从近到远
         String key = RedisConstants.SHOP_GEO_KEY + typeId.toString();
         GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate
                 .opsForGeo()
                 //传入key，用户坐标，半径
-                .search(key, GeoReference.fromCoordinate(x, y), new Distance(5000),
+                .search(key, GeoReference.fromCoordinate(x, y), new Distance(radius),
                 //参数，limit(查询记录个数)，includeDistance(返回结果中包含距离)
-                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().limit(end).includeDistance());
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().limit(limit).includeDistance());
         //为空则说明附近没有商铺直接返回空集合
-        if (results == null) return Result.ok(Collections.emptyList());
-        //获取查询内容
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> geoResults = results.getContent();
-        //说明已经到最后一页
-        if(geoResults.size() <= begin) return Result.ok(Collections.emptyList());
+        if (results == null) return Collections.emptyMap();
         //记录店铺id和距离用户的距离
-        Map<String, Distance> distanceMap = new HashMap<>(geoResults.size());
-        //获取到当前分页的店铺id，并封装distanceMap
-        String ids = geoResults.stream().skip(begin).map(geoResult -> {
-            String idStr = geoResult.getContent().getName();
-            distanceMap.put(idStr, geoResult.getDistance());
-            return idStr;
-        }).collect(Collectors.joining(","));
-        log.info(ids);
-        //根据传入的ids值顺序查询商铺并封装distance，以相同的顺序返回
-        List<Shop> shopList = lambdaQuery().inSql(Shop::getId, ids)
-                //保证查询结构顺序与id传入顺序相同
-                .last("ORDER BY FIELD(id," + ids + ")").list()
-                //封装shop的distance属性
-                .stream().map(shop -> {
-                    Distance distance = distanceMap.get(shop.getId().toString());
-                    shop.setDistance(distance.getValue());
-                    return shop;
+        Map<String, Double> distanceMap = new LinkedHashMap<>(results.getContent().size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> geoResult : results.getContent()) {
+            distanceMap.put(geoResult.getContent().getName(), geoResult.getDistance().getValue());
+        }
+        return distanceMap;
+    }
+
+    /**
+     * 游标方式查询附近的商铺
+     * 第一页通过GEOSEARCHSTORE把半径内的店铺id和距离保存到短期有效的有序集合中，
+     * 之后每一页根据游标(上一页最后一个店铺的距离和id)只读取下一页，翻到多深每页的代价都相同
+     * @param cursor 上一页返回的游标，第一页为空
+     */
+    @Override
+    public Result scrollShopByType(Integer typeId, Double x, Double y, Double radius, String cursor) {
+        double r = geoRadius(radius);
+        String resultKey = geoResultKey(typeId, x, y, r);
+        //结果缓存不存在时查询一次半径内的所有店铺，判断、保存和设置过期时间在一个脚本中完成
+        scriptRegistry.execute(RedisScriptRegistry.SHOP_GEO_STORE,
+                Arrays.asList(RedisConstants.SHOP_GEO_KEY + typeId, resultKey),
+                x.toString(), y.toString(), String.valueOf(r),
+                String.valueOf(SystemConstants.SHOP_GEO_RESULT_LIMIT), RedisConstants.SHOP_GEO_RESULT_TTL.toString());
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples;
+        if (StrUtil.isBlank(cursor)) {
+            tuples = stringRedisTemplate.opsForZSet().rangeWithScores(resultKey, 0, size - 1);
+        } else {
+            String[] parts = decodeGeoCursor(cursor);
+            if (parts == null) return Result.fail("游标无效");
+            Long rank = stringRedisTemplate.opsForZSet().rank(resultKey, parts[1]);
+            if (rank == null) {
+                //结果缓存已重新生成且不包含上一页的店铺时，按(距离, 店铺id)定位下一页的起点
+                rank = rankAfter(resultKey, Double.parseDouble(parts[0]), parts[1]) - 1;
+            }
+            tuples = stringRedisTemplate.opsForZSet().rangeWithScores(resultKey, rank + 1, rank + size);
+        }
+        ShopScrollResult result = new ShopScrollResult();
+        if (tuples == null || tuples.isEmpty()) {
+            result.setList(Collections.emptyList());
+            return Result.ok(result);
+        }
+        Map<String, Double> distanceMap = new LinkedHashMap<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            distanceMap.put(tuple.getValue(), tuple.getScore());
+        }
+        result.setList(hydrate(distanceMap));
+        if (tuples.size() == size) {
+            ZSetOperations.TypedTuple<String> last = tuples.stream().reduce((a, b) -> b).get();
+            result.setCursor(Base64.encodeUrlSafe(last.getScore() + ":" + last.getValue()));
+        }
+        return Result.ok(result);
+    }
+
+    /**
+     * 根据店铺名称关键字分页查询店铺，名称索引构建完成时从内存中查询，按评分从高到低排序
+     * 名称匹配与LIKE一致，字母和数字组成的关键字还会额外返回拼音或拼音首字母匹配的店铺
+     * @param name 店铺名称关键字
+     * @param current 页码
+     */
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        //名称索引尚未构建完成时查询数据库
+        if (StrUtil.isBlank(name) || !shopSearchIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        int offset = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = shopSearchIndex.search(name, offset, SystemConstants.MAX_PAGE_SIZE);
+        List<Shop> shops = hydrate(ids);
+        if (shops.size() < ids.size()) {
+            //缓存了空值或缓存、数据库暂时未命中的店铺仍然存在，只从索引中移除数据库中确认已删除的店铺
+            Set<Long> found = shops.stream().map(Shop::getId).collect(Collectors.toSet());
+            List<Long> missing = ids.stream().filter(id -> !found.contains(id)).collect(Collectors.toList());
+            Set<Long> existing = listByIds(missing).stream().map(Shop::getId).collect(Collectors.toSet());
+            List<Long> deleted = missing.stream().filter(id -> !existing.contains(id)).collect(Collectors.toList());
+            //店铺已在其他节点删除，但本节点还没有收到通知，移除后重新查询一次这一页，仍然不足时直接返回
+            if (!deleted.isEmpty()) {
+                deleted.forEach(shopSearchIndex::remove);
+                shops = hydrate(shopSearchIndex.search(name, offset, SystemConstants.MAX_PAGE_SIZE));
+            }
+        }
+        return Result.ok(shops);
+    }
+
+    /**
+     * 根据店铺id查询店铺，不设置距离
+     */
+    private List<Shop> hydrate(List<Long> ids) {
+        Map<String, Double> idMap = new LinkedHashMap<>(ids.size());
+        ids.forEach(id -> idMap.put(id.toString(), null));
+        return hydrate(idMap);
+    }
+
+    /**
+     * 店铺名称自动补全
+     * @param prefix 已输入的内容
+     */
+    @Override
+    public Result suggestShopName(String prefix) {
+        if (StrUtil.isBlank(prefix) || !shopSearchIndex.isReady()) return Result.ok(Collections.emptyList());
+        return Result.ok(shopSearchIndex.suggest(prefix, SystemConstants.SHOP_SUGGEST_SIZE));
+    }
+
+    /**
+     * 根据店铺id查询店铺并设置距离，保持distanceMap中的顺序
+     * 店铺通过缓存批量查询，只有未命中的店铺通过一次IN查询从数据库加载
+     * @param distanceMap 店铺id -> 距离(米)
+     */
+    private List<Shop> hydrate(Map<String, Double> distanceMap) {
+        List<Long> ids = distanceMap.keySet().stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, Shop> shopMap = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //一级缓存中的对象是共享的，复制后再设置距离
+        return shopMap.values().stream().map(shop -> {
+                    Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+                    copy.setDistance(distanceMap.get(shop.getId().toString()));
+                    return copy;
                 })
                 .collect(Collectors.toList());
-        log.info(shopList.toString());
-        return Result.ok(shopList);
+    }
+
+    private static double geoRadius(Double radius) {
+        if (radius == null || radius <= 0) return SystemConstants.SHOP_GEO_RADIUS;
+        return Math.min(radius, SystemConstants.SHOP_GEO_MAX_RADIUS);
+    }
+
+    /**
+     * 结果缓存的key，同一个用户在同一个位置网格内翻页共用一份结果
+     */
+    private static String geoResultKey(Integer typeId, double x, double y, double radius) {
+        UserDTO user = UserHolder.getUser();
+        long cellX = (long) Math.floor(x / SystemConstants.SHOP_GEO_CELL_SIZE);
+        long cellY = (long) Math.floor(y / SystemConstants.SHOP_GEO_CELL_SIZE);
+        return RedisConstants.SHOP_GEO_RESULT_KEY + typeId + ":" + (long) radius + ":" + cellX + ":" + cellY
+                + ":" + (user == null ? 0 : user.getId());
+    }
+
+    /**
+     * 有序集合中排在(distance, member)之后的第一个元素的排名，有序集合按分数排序，分数相同时按成员的字典序
+     */
+    private long rankAfter(String key, double distance, String member) {
+        Long closer = stringRedisTemplate.opsForZSet().count(key, Double.NEGATIVE_INFINITY, Math.nextDown(distance));
+        Set<String> ties = stringRedisTemplate.opsForZSet().rangeByScore(key, distance, distance);
+        long before = closer == null ? 0 : closer;
+        if (ties != null) {
+            //店铺id只包含数字，字符串比较与redis按字节比较的结果相同
+            before += ties.stream().filter(m -> m.compareTo(member) <= 0).count();
+        }
+        return before;
+    }
+
+    /**
+     * 解析游标
+     * @return [距离, 店铺id]，游标无效时返回null
+     */
+    private static String[] decodeGeoCursor(String cursor) {
+        try {
+            String[] parts = Base64.decodeStr(cursor).split(":");
+            if (parts.length != 2) return null;
+            Double.parseDouble(parts[0]);
+            return parts;
+        } catch (Exception e) {
+            return null;
+        }
     }
 }
@@ -21,13 +21,17 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -42,6 +46,18 @@ import java.util.concurrent.TimeUnit;
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisBloomFilter bloomFilter;
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 查询用户缓存前先经过布隆过滤器
+     */
+    @PostConstruct
+    private void init() {
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_USER_KEY, RedisConstants.BLOOM_USER_KEY);
+    }
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -92,6 +108,20 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    /**
+     * 新增用户，并将id加入布隆过滤器
+     * @param user 用户
+     * @return 是否成功
+     */
+    @Override
+    public boolean save(User user) {
+        boolean success = super.save(user);
+        if(success){
+            bloomFilter.add(RedisConstants.BLOOM_USER_KEY, user.getId());
+        }
+        return success;
+    }
+
     @Override
     public Result sign() {
         Long uid = UserHolder.getUser().getId();
@@ -120,4 +150,18 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         }
         return Result.ok(count);
     }
+
+    /**
+     * 批量查询用户的公开信息，先查缓存，未命中的用户通过一次IN查询加载
+     * @param ids 用户id
+     * @return 按传入顺序排列的用户id到用户信息的映射
+     */
+    @Override
+    public Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids) {
+        return cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
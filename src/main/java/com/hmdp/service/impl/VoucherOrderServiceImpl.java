@@ -1,37 +1,38 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
-import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.StreamBatchConsumer;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -44,23 +45,19 @@ import java.util.concurrent.Executors;
 @Service
 @Slf4j
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
-    @Resource
-    ISeckillVoucherService iSeckillVoucherService;
     @Resource
     RedisIdWorker redisIdWorker;
     @Resource
     StringRedisTemplate stringRedisTemplate;
     @Resource
-    RedissonClient redissonClient;
+    SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    MeterRegistry meterRegistry;
+    @Resource
+    SeckillStock seckillStock;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //订单消息队列的消费者，分段模式下每个分段的stream各有一组消费者
+    private final List<StreamBatchConsumer> orderConsumers = new ArrayList<>();
 
     /**
      * 旧版：在类初始化完成后就直接开始启动线程处理阻塞队列的任务
@@ -80,92 +77,49 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     /**
-     * 读取stream消息队列中的信息并处理
+     * 启动多个消费者批量读取stream消息队列中的订单并处理
+     * 消费者名称由主机名、进程号和线程序号组成，保证多节点、多线程之间不重复
+     * 处理失败或宕机节点未确认的订单由恢复任务认领重试，多次失败的订单转移到死信队列
+     * 库存分段时订单发送到各分段的stream，单key模式初始化的优惠券仍使用stream.orders，两者都需要消费
      */
     @PostConstruct
     private void init() {
-        String queueName = "stream.orders";
-        SECKILL_ORDER_EXECUTOR.submit( () -> {
-            while (true) {
-                try {
-                    //1.获取消息队列中的信息
-                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),//指定消费者组和消费者
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),//指定每次取的数量和阻塞时间
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())//指定队列和每次取的位置
-                    );
-                    //2.是否为空
-                    if(records == null || records.isEmpty()){
-                        continue;
-                    }
-                    //3.处理订单
-                    Map<Object, Object> map = records.get(0).getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(map, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    //4.返回ack
-                    stringRedisTemplate.opsForStream().acknowledge("s1","g1",records.get(0).getId());
-                } catch (Exception e) {
-                    //处理订单异常后我们到PendingList中重新处理
-                    log.error("处理订单异常", e);
-                    //处理异常消息
-                    handlePendingList();
-                }
+        String consumerPrefix = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+        List<String> streams = new ArrayList<>();
+        streams.add(RedisConstants.SECKILL_ORDER_STREAM);
+        if (RedisConstants.SECKILL_STOCK_SHARDS > 1) {
+            for (int i = 0; i < RedisConstants.SECKILL_STOCK_SHARDS; i++) {
+                streams.add(SeckillStock.orderStream(i));
             }
-        });
+        }
+        for (String stream : streams) {
+            StreamBatchConsumer consumer = new StreamBatchConsumer(stringRedisTemplate, meterRegistry,
+                    stream, RedisConstants.SECKILL_ORDER_GROUP, consumerPrefix,
+                    SystemConstants.ORDER_CONSUMER_COUNT, SystemConstants.ORDER_BATCH_SIZE,
+                    this::handleVoucherOrders)
+                    .enableRecovery(RedisConstants.SECKILL_ORDER_DLQ,
+                            Duration.ofMillis(SystemConstants.ORDER_PENDING_MIN_IDLE), SystemConstants.ORDER_MAX_DELIVERIES);
+            consumer.start();
+            orderConsumers.add(consumer);
+        }
     }
 
-    /**
-     * 到PendingList处理未处理成功的订单
-     */
-    private void handlePendingList() {
-        while (true) {
-            try {
-                // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                );
-                // 2.判断订单信息是否为空
-                if (list == null || list.isEmpty()) {
-                    // 如果为null，说明没有异常消息，结束循环
-                    break;
-                }
-                // 解析数据
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> value = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                // 3.创建订单
-                handleVoucherOrder(voucherOrder);
-                // 4.确认消息 XACK
-                stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-            } catch (Exception e) {
-                log.error("处理pendding订单异常", e);
-                try{
-                    Thread.sleep(20);
-                }catch(Exception exception){
-                    e.printStackTrace();
-                }
-            }
-        }
+    @PreDestroy
+    private void destroy() {
+        orderConsumers.forEach(StreamBatchConsumer::stop);
     }
 
     /**
-     * 处理订单请求
-     * @param order 订单信息
+     * 处理一批订单消息
+     * @param records 订单消息
      */
-    private void handleVoucherOrder(VoucherOrder order) {
-        Long id = order.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + id);
-        if (!lock.tryLock()) {
-            log.error("用户重复下单");
-        }
-        try {
-            //2.使用代理对象来调用具有事务的方法
-            proxy.GetcreateVoucherOrder(order);
-        } finally {
-            lock.unlock();
+    private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
         }
+        //使用代理对象来调用具有事务的方法
+        self.createVoucherOrders(orders);
     }
 
     /**
@@ -173,62 +127,79 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * @param voucherId
      * @return
      */
-    //创建阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks =new ArrayBlockingQueue<>(1024 * 1024);
-    //代理对象
-    IVoucherOrderService proxy;
+    //代理对象，消费者线程中无法通过AopContext获取，直接注入
+    @Lazy
+    @Resource
+    IVoucherOrderService self;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
         UserDTO user = UserHolder.getUser();
         long orderId = redisIdWorker.nextId("order");
         // 执行lua脚本，实现资格判断并将订单信息加入stream消息队列
-        Long res = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),//优惠卷id
-                user.getId().toString(),//用户id
-                String.valueOf(orderId)//订单id
-        );
+        int value = seckillStock.deduct(voucherId, user.getId(), orderId);
         //判断结果
-        int value = res.intValue();
-        if(value != 0){
-            return value == 1 ? Result.fail("优惠卷库存不足") : Result.fail("不能重复下单");
+        switch (value) {
+            case SeckillStock.SUCCESS:
+                break;
+            case SeckillStock.SOLD_OUT:
+                return Result.fail("优惠卷库存不足");
+            case SeckillStock.NOT_STARTED:
+                return Result.fail("秒杀尚未开始！");
+            case SeckillStock.ENDED:
+                return Result.fail("该优惠卷已过期");
+            default:
+                return Result.fail("不能重复下单");
         }
-        //在主线程获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         //返回订单ID
-        Long OrderId = redisIdWorker.nextId("order");
-        return Result.ok(OrderId);
+        return Result.ok(orderId);
     }
 
     /**
-     * 创建订单操作
-     * @param voucherOrder 订单信息得实体类
-     * @return
+     * 批量创建订单：按优惠券分组，每组一条INSERT IGNORE插入，再按实际插入的行数扣减库存
+     * 订单id是主键，(user_id, voucher_id)有唯一索引，重复投递的消息或重复下单的订单会被忽略，
+     * 因此不再需要查询是否已下单，也不需要加用户锁
+     * INSERT IGNORE同样会忽略主键冲突，有订单被忽略时检查主键，不同订单的id重复时回滚整批
+     * @param orders 订单信息
      */
     @Transactional
     @Override
-    public void GetcreateVoucherOrder(VoucherOrder voucherOrder) {
-        //实现一人一单
-
-        Integer count = lambdaQuery()
-                .eq(VoucherOrder::getUserId, voucherOrder.getUserId())
-                .eq(VoucherOrder::getVoucherId, voucherOrder.getUserId())
-                .count();
-        if (count > 0) {
-            log.error("用户重复购买");
+    public void createVoucherOrders(List<VoucherOrder> orders) {
+        Map<Long, List<VoucherOrder>> groups = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            groups.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
         }
-        //扣减库存
-        boolean success = iSeckillVoucherService.lambdaUpdate()
-                .setSql("stock= stock -1")
-                .eq(SeckillVoucher::getVoucherId, voucherOrder.getVoucherId())
-                .gt(SeckillVoucher::getStock, 0)
-                .update();
-        if (!success) {
-            log.error("库存不足");
+        groups.forEach((voucherId, group) -> {
+            int inserted = getBaseMapper().insertIgnoreBatch(group);
+            if (inserted < group.size()) {
+                checkOrderIds(group);
+                log.info("忽略重复订单，voucherId:{}，count:{}", voucherId, group.size() - inserted);
+            }
+            if (inserted > 0 && seckillVoucherMapper.decreaseStock(voucherId, inserted) == 0) {
+                //库存已在redis中预扣，数据库库存不足说明两边数据不一致，回滚整批订单等待重试
+                throw new RuntimeException("库存不足，voucherId:" + voucherId + "，count:" + inserted);
+            }
+        });
+    }
+
+    /**
+     * 检查被忽略的订单是否只是重复下单或重复投递：
+     * 表中同一id的订单必须属于同一用户和优惠券，否则是两个不同的订单生成了相同的id，
+     * 抛出异常回滚整批，多次重试失败后转入死信队列，而不是悄悄丢弃订单
+     * @param orders 同一优惠券的订单
+     */
+    private void checkOrderIds(List<VoucherOrder> orders) {
+        Map<Long, VoucherOrder> saved = new HashMap<>(orders.size());
+        lambdaQuery().in(VoucherOrder::getId, orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .list().forEach(order -> saved.put(order.getId(), order));
+        for (VoucherOrder order : orders) {
+            VoucherOrder exist = saved.get(order.getId());
+            if (exist != null && (!exist.getUserId().equals(order.getUserId())
+                    || !exist.getVoucherId().equals(order.getVoucherId()))) {
+                throw new RuntimeException("订单id重复，orderId:" + order.getId()
+                        + "，userId:" + order.getUserId() + "，已有订单的userId:" + exist.getUserId());
+            }
         }
-        save(voucherOrder);
     }
 
     /**
@@ -7,8 +7,7 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillStock;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -29,7 +28,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStock seckillStock;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -51,10 +50,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        stringRedisTemplate.opsForValue().set(
-                RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
-                voucher.getStock().toString());
-
-
+        // 保存秒杀库存和秒杀时间到redis
+        seckillStock.init(voucher.getId(), voucher.getStock(), voucher.getBeginTime(), voucher.getEndTime());
     }
 }
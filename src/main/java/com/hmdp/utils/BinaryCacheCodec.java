@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializerFactory;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.entity.Follow;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.User;
+import com.hmdp.entity.UserInfo;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * 基于kryo的紧凑二进制编解码器，超过阈值的数据使用LZ4压缩
+ * 格式：1字节魔数 + 1字节版本和标志位(高4位版本，低4位标志) + [压缩时4字节原始长度] + kryo数据
+ * 不以魔数开头的数据按JSON解码，兼容切换编解码器之前写入的缓存
+ * 1.使用CompatibleFieldSerializer按字段名读写，实体增删字段后滚动发布期间新旧节点仍可互相读取
+ * 2.只能读写注册过的类型，redis中的数据不能让kryo实例化任意的类
+ * 3.格式不兼容时升级版本号，其他版本的数据视为未命中重新加载
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte MAGIC = (byte) 0xB1;
+    private static final int VERSION = 1;
+    private static final byte FLAG_COMPRESSED = 1;
+    private static final int HEADER_LENGTH = 2;
+
+    //kryo不是线程安全的，每个线程持有一个实例
+    private static final ThreadLocal<Kryo> KRYO = ThreadLocal.withInitial(() -> {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(true);
+        kryo.setReferences(false);
+        //分块写入字段，读取时可以跳过本节点不认识的字段
+        CompatibleFieldSerializer.CompatibleFieldSerializerConfig config =
+                new CompatibleFieldSerializer.CompatibleFieldSerializerConfig();
+        config.setChunkedEncoding(true);
+        kryo.setDefaultSerializer(new SerializerFactory.CompatibleFieldSerializerFactory(config));
+        //可以缓存的类型(实体和UserDTO)，注册id写入数据中，只能追加不能修改
+        kryo.register(LocalDateTime.class, 100);
+        kryo.register(LocalDate.class, 101);
+        kryo.register(RedisData.class, 102);
+        kryo.register(UserDTO.class, 103);
+        kryo.register(Shop.class, 104);
+        kryo.register(ShopType.class, 105);
+        kryo.register(User.class, 106);
+        kryo.register(UserInfo.class, 107);
+        kryo.register(Blog.class, 108);
+        kryo.register(BlogComments.class, 109);
+        kryo.register(Follow.class, 110);
+        kryo.register(Voucher.class, 111);
+        kryo.register(SeckillVoucher.class, 112);
+        kryo.register(VoucherOrder.class, 113);
+        return kryo;
+    });
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    @Override
+    public byte[] encode(Object value) {
+        Output output = new Output(256, -1);
+        output.writeByte(MAGIC);
+        output.writeByte(VERSION << 4);
+        KRYO.get().writeObject(output, value);
+        byte[] bytes = output.toBytes();
+        int length = bytes.length - HEADER_LENGTH;
+        if (length < RedisConstants.CACHE_COMPRESS_THRESHOLD) {
+            return bytes;
+        }
+        //超过阈值则压缩
+        byte[] compressed = new byte[HEADER_LENGTH + 4 + COMPRESSOR.maxCompressedLength(length)];
+        int compressedLength = COMPRESSOR.compress(bytes, HEADER_LENGTH, length, compressed, HEADER_LENGTH + 4);
+        if (compressedLength + 4 >= length) {
+            return bytes;
+        }
+        compressed[0] = MAGIC;
+        compressed[1] = (byte) (VERSION << 4 | FLAG_COMPRESSED);
+        writeInt(compressed, HEADER_LENGTH, length);
+        byte[] result = new byte[HEADER_LENGTH + 4 + compressedLength];
+        System.arraycopy(compressed, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * 其他版本的二进制数据无法读取
+     */
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length < HEADER_LENGTH || bytes[0] != MAGIC || (bytes[1] & 0xFF) >>> 4 == VERSION;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes[0] != MAGIC) {
+            return jsonCodec.decode(bytes, type);
+        }
+        return KRYO.get().readObject(payload(bytes), type);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        if (bytes[0] != MAGIC) {
+            return jsonCodec.decodeLogical(bytes, type);
+        }
+        //data字段写入时带有类型信息，一次反序列化即可得到目标类型
+        return KRYO.get().readObject(payload(bytes), RedisData.class);
+    }
+
+    /**
+     * 去掉头部，必要时解压缩
+     */
+    private Input payload(byte[] bytes) {
+        if ((bytes[1] & FLAG_COMPRESSED) == 0) {
+            return new Input(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+        }
+        int length = readInt(bytes, HEADER_LENGTH);
+        return new Input(DECOMPRESSOR.decompress(bytes, HEADER_LENGTH + 4, length));
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -1,32 +1,76 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.lang.UUID;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 @Component
 @Slf4j
 /**
  * 缓存操作的工具类
+ * 缓存的值通过CacheCodec编解码后以字节形式存入redis，空值标记为空字节数组。
+ * 在redis(二级缓存)之前有一层有界的进程内缓存(一级缓存)，按容量LRU淘汰并带有TTL，
+ * 删除缓存时通过redis的发布订阅通知所有节点清除各自的一级缓存。
  */
-public class CacheClient {
+public class CacheClient implements MessageListener {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    RedisTemplate<String, byte[]> byteRedisTemplate;
+    @Resource
+    CacheCodec cacheCodec;
+    @Resource
+    RedisBloomFilter bloomFilter;
+    @Resource
+    CacheRebuildExecutor rebuildExecutor;
+    @Resource
+    CacheMetrics metrics;
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    //键的前缀与布隆过滤器的对应关系
+    private final Map<String, String> bloomFilters = new ConcurrentHashMap<>();
+
+    //进程内一级缓存，存放反序列化后的对象，写入后经过固定时间过期，读取不会延长过期时间
+    private final Cache<String, Object> localCache = CacheUtil.newLRUCache(
+            RedisConstants.CACHE_LOCAL_CAPACITY,
+            TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_LOCAL_TTL));
+
+    //本节点正在进行的缓存重构任务
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> rebuildFutures = new ConcurrentHashMap<>();
 
     /**
-     * 向redis中存入数据并指定TTL
+     * 向redis中存入数据并指定TTL，TTL会加上随机抖动，避免大量key同时过期
      * @param key 键
      * @param value 数据
      * @param time TTL
@@ -34,11 +78,43 @@ public class CacheClient {
      * @param <T> 数据类型
      */
     public  <T> void set(String key, T value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byteRedisTemplate.opsForValue().set(key, cacheCodec.encode(value),jitter(time, unit),TimeUnit.MILLISECONDS);
     }
 
     /**
-     * 向redis中存入数据并指定逻辑TTL
+     * 在TTL上增加[0, TTL * CACHE_TTL_JITTER_RATIO]的随机时长
+     * @return 加上抖动后的TTL(毫秒)
+     */
+    private long jitter(Long time, TimeUnit unit){
+        long millis = unit.toMillis(time);
+        long bound = (long) (millis * RedisConstants.CACHE_TTL_JITTER_RATIO);
+        return bound > 0 ? millis + ThreadLocalRandom.current().nextLong(bound + 1) : millis;
+    }
+
+    /**
+     * 通过一次pipeline向redis中批量存入数据并指定TTL，TTL同样带有随机抖动
+     * 只写入不存在的key(SET NX)，不会覆盖其他节点刚刚重建或删除后重新加载的数据
+     * @param prefixKey 键的前缀
+     * @param values id到数据的映射
+     * @param time TTL
+     * @param unit TTL的单位
+     * @param <R> 数据类型
+     * @param <ID> 数据id
+     */
+    public <R,ID> void setBatchIfAbsent(String prefixKey, Map<ID,R> values, Long time, TimeUnit unit){
+        if(values.isEmpty()){
+            return;
+        }
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((id, r) -> connection.stringCommands().set(
+                    (prefixKey + id).getBytes(StandardCharsets.UTF_8), cacheCodec.encode(r),
+                    Expiration.milliseconds(jitter(time, unit)), RedisStringCommands.SetOption.ifAbsent()));
+            return null;
+        });
+    }
+
+    /**
+     * 向redis中存入数据并指定逻辑TTL，重建耗时未知，提前刷新时按默认耗时计算
      * @param key 键
      * @param value 数据
      * @param time TTL
@@ -46,16 +122,30 @@ public class CacheClient {
      * @param <T> 数据类型
      */
     public  <T> void setWithLogicalExpire(String key, T value, Long time, TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 向redis中存入数据并指定逻辑TTL，同时记录重建该数据的耗时，用于提前刷新
+     * @param key 键
+     * @param value 数据
+     * @param time TTL
+     * @param unit TTL的单位
+     * @param delta 重建数据的耗时(毫秒)
+     * @param <T> 数据类型
+     */
+    public  <T> void setWithLogicalExpire(String key, T value, Long time, TimeUnit unit, Long delta){
         //封装RedisData
         RedisData data = new RedisData();
         data.setData(value);
+        data.setDelta(delta);
         //计算逻辑过期时间
         data.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(data));
+        byteRedisTemplate.opsForValue().set(key, cacheCodec.encode(data));
     }
 
     /**
-     * 查询数据并通过向redis中存入控制的方案解决缓存穿透
+     * 查询数据并通过布隆过滤器和向redis中存入空值的方案解决缓存穿透
      * @param prefixKey 键的前缀
      * @param id 数据id
      * @param type redis获得的数据反序列化的类型
@@ -68,18 +158,34 @@ public class CacheClient {
      */
     public <R,ID> R queryWithPassThrough(
             String prefixKey, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
-        //用key查询redis是否存在缓存
         String key = prefixKey + id;
-        String JSONStr = stringRedisTemplate.opsForValue().get(key);
-        if("".equals(JSONStr)){
+        //先查询一级缓存
+        R local = getLocal(key, type);
+        if(local != null){
+            metrics.record(prefixKey, CacheMetrics.PASS_THROUGH, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //布隆过滤器判断数据一定不存在，直接返回
+        if(!mightExist(prefixKey, id)){
+            metrics.record(prefixKey, CacheMetrics.PASS_THROUGH, CacheMetrics.BLOOM_REJECTED);
+            return null;
+        }
+        //用key查询redis是否存在缓存
+        byte[] bytes = readable(byteRedisTemplate.opsForValue().get(key));
+        if(bytes != null && bytes.length == 0){
+            metrics.record(prefixKey, CacheMetrics.PASS_THROUGH, CacheMetrics.NULL_HIT);
             return null;
         }
         //缓存命中直接将数据返回
-        if(JSONStr != null) {
-            return JSONUtil.toBean(JSONStr,type);
+        if(bytes != null) {
+            metrics.record(prefixKey, CacheMetrics.PASS_THROUGH, CacheMetrics.HIT);
+            return putLocal(key, cacheCodec.decode(bytes,type));
         }
         //未命中，从数据库中查询数据。
+        metrics.record(prefixKey, CacheMetrics.PASS_THROUGH, CacheMetrics.MISS);
+        long begin = System.nanoTime();
         R r = dbFallback.apply(id);
+        metrics.recordLoad(prefixKey, CacheMetrics.PASS_THROUGH, System.nanoTime() - begin);
 
         //解决缓存穿透，数据库中也不存在的数据向redis缓存空值。
         if(r == null){
@@ -89,13 +195,13 @@ public class CacheClient {
         //将数据库查出的结果添加到redis形成缓存
         this.set(key, r, time, unit);
 
-        return r;
+        return putLocal(key, r);
     }
 
     /**
      * 查询数据
-     * 1.通过互斥锁解决缓存击穿
-     * 2.通过写入空值解决缓存穿透
+     * 1.通过互斥锁解决缓存击穿，本节点内同一个key只有一个线程重构，集群内由redis锁协调
+     * 2.通过布隆过滤器和写入空值解决缓存穿透
      * @param prefixKey 键的前缀
      * @param id 数据id
      * @param type redis获得的数据反序列化的类型
@@ -108,52 +214,215 @@ public class CacheClient {
      */
     public <R,ID> R queryWithMutex(
             String prefixKey, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
-        //用key查询redis是否存在缓存
         String key = prefixKey + id;
-        String JSONStr = stringRedisTemplate.opsForValue().get(key);
+        //先查询一级缓存
+        R local = getLocal(key, type);
+        if(local != null){
+            metrics.record(prefixKey, CacheMetrics.MUTEX, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //布隆过滤器判断数据一定不存在，直接返回
+        if(!mightExist(prefixKey, id)){
+            metrics.record(prefixKey, CacheMetrics.MUTEX, CacheMetrics.BLOOM_REJECTED);
+            return null;
+        }
+        //用key查询redis是否存在缓存
+        byte[] bytes = readable(byteRedisTemplate.opsForValue().get(key));
         //缓存命中直接将数据返回
-        if(StrUtil.isNotBlank(JSONStr)) {
-            return JSONUtil.toBean(JSONStr, type);
+        if(bytes != null && bytes.length > 0) {
+            metrics.record(prefixKey, CacheMetrics.MUTEX, CacheMetrics.HIT);
+            return putLocal(key, cacheCodec.decode(bytes, type));
         }
         //判断命中的值是否是空值,为空则解决缓存击穿
-        if ("".equals(JSONStr)) {
+        if (bytes != null) {
             //返回一个错误信息
+            metrics.record(prefixKey, CacheMetrics.MUTEX, CacheMetrics.NULL_HIT);
             return null;
         }
-        //未命中,进行缓存重构
-        R r = null;
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        metrics.record(prefixKey, CacheMetrics.MUTEX, CacheMetrics.MISS);
+        //未命中,同一个key在本节点只由一个线程重构缓存，其余线程等待它的结果
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = rebuildFutures.putIfAbsent(key, future);
+        if(running != null){
+            long begin = System.nanoTime();
+            try {
+                return awaitRebuild(running, type);
+            } finally {
+                metrics.recordLockWait(prefixKey, System.nanoTime() - begin);
+            }
+        }
         try {
-            Boolean isLock = getLock(lockKey);
-            //没有拿到锁，说明有其他线程在重构缓存
-            if(!isLock){
-                Thread.sleep(50);
-                //递归重试，直到拿到锁的线程重构缓存成功
-                return queryWithMutex(prefixKey,id,type,dbFallback,time,unit);
+            R r = rebuildWithMutex(prefixKey, id, type, dbFallback, time, unit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            rebuildFutures.remove(key, future);
+        }
+    }
+
+    /**
+     * 通过redis互斥锁重构缓存，保证整个集群同一时刻只有一个节点查询数据库
+     * 没有拿到锁的节点轮询redis等待其他节点重构完成，超过等待时间则抛出异常
+     */
+    private <R,ID> R rebuildWithMutex(
+            String prefixKey, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = prefixKey + id;
+        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        long begin = System.nanoTime();
+        long deadline = System.currentTimeMillis() + RedisConstants.CACHE_REBUILD_WAIT_TIMEOUT;
+        while (true) {
+            String lockToken = getLock(lockKey);
+            if(lockToken != null){
+                metrics.recordLockWait(prefixKey, System.nanoTime() - begin);
+                try {
+                    //拿到锁后再次检查缓存，其他节点可能刚刚重构完成
+                    byte[] bytes = readable(byteRedisTemplate.opsForValue().get(key));
+                    if(bytes != null){
+                        return bytes.length == 0 ? null : putLocal(key, cacheCodec.decode(bytes, type));
+                    }
+                    //拿到锁开始重构缓存
+                    long loadBegin = System.nanoTime();
+                    R r = dbFallback.apply(id);
+                    metrics.recordLoad(prefixKey, CacheMetrics.MUTEX, System.nanoTime() - loadBegin);
+                    //数据库不存在数据向redis缓存空值解决缓存穿透
+                    if(r == null){
+                        stringRedisTemplate.opsForValue().set(key,""
+                                ,RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
+                        return null;
+                    }
+                    //缓存重构
+                    set(key,r,time,unit);
+                    return putLocal(key, r);
+                } finally {
+                    //无论重构是否成功都需要释放锁
+                    unlock(lockKey, lockToken);
+                }
             }
-            //拿到锁开始重构缓存
-            r = dbFallback.apply(id);
-            //模拟重建缓存
-            Thread.sleep(200);
-            //数据库不存在数据向redis缓存空值解决缓存穿透
-            if(r == null){
-                stringRedisTemplate.opsForValue().set(key,""
-                        ,RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
+            //没有拿到锁，说明有其他节点在重构缓存，查看是否已经重构完成
+            byte[] bytes = readable(byteRedisTemplate.opsForValue().get(key));
+            if(bytes != null){
+                metrics.recordLockWait(prefixKey, System.nanoTime() - begin);
+                return bytes.length == 0 ? null : putLocal(key, cacheCodec.decode(bytes, type));
+            }
+            if(System.currentTimeMillis() >= deadline){
+                throw new RuntimeException("缓存重构超时:" + key);
             }
-            //缓存重构
-            set(key,r,time,unit);
-        }catch (Exception e){
+            try {
+                Thread.sleep(RedisConstants.CACHE_REBUILD_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 等待本节点正在进行的缓存重构结果
+     * @param future 重构任务
+     * @param type 数据类型
+     * @return 重构得到的数据
+     */
+    private <R> R awaitRebuild(CompletableFuture<Object> future, Class<R> type){
+        try {
+            return type.cast(future.get(RedisConstants.CACHE_REBUILD_WAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            //无论重构是否成功都需要释放锁
-            unlock(lockKey);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待缓存重构超时", e);
         }
-        return r;
     }
 
-    //线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询数据
+     * 1.先查一级缓存，剩余的key通过一次MGET查询redis
+     * 2.redis未命中的id通过一次IN查询从数据库加载，再用一次pipeline写回redis(不存在的id写入空值)
+     * @param prefixKey 键的前缀
+     * @param ids 数据id
+     * @param type redis获得的数据反序列化的类型
+     * @param dbFallback 根据一批id查询数据库，返回id到数据的映射
+     * @param time 缓存的TTL
+     * @param unit TTL的单位
+     * @param <R> 返回的数据
+     * @param <ID> 根据id查询数据库
+     * @return 按传入id顺序排列的id到数据的映射，不存在的id不包含在结果中
+     */
+    public <R,ID> Map<ID,R> queryBatch(
+            String prefixKey, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID,R> found = new HashMap<>(ids.size());
+        //1.查询一级缓存，并通过布隆过滤器过滤掉一定不存在的id
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = prefixKey + id;
+            R local = getLocal(key, type);
+            if(local != null){
+                found.put(id, local);
+            }else if(mightExist(prefixKey, id)){
+                redisIds.add(id);
+                keys.add(key);
+            }else{
+                metrics.record(prefixKey, CacheMetrics.BATCH, CacheMetrics.BLOOM_REJECTED);
+            }
+        }
+        metrics.record(prefixKey, CacheMetrics.BATCH, CacheMetrics.LOCAL_HIT, found.size());
+        //2.一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if(!keys.isEmpty()){
+            int hits = 0, nullHits = 0;
+            List<byte[]> values = byteRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values == null ? null : readable(values.get(i));
+                if(bytes == null){
+                    missIds.add(redisIds.get(i));
+                }else if(bytes.length > 0){
+                    hits++;
+                    found.put(redisIds.get(i), putLocal(keys.get(i), cacheCodec.decode(bytes, type)));
+                }else{
+                    nullHits++;
+                }
+            }
+            metrics.record(prefixKey, CacheMetrics.BATCH, CacheMetrics.HIT, hits);
+            metrics.record(prefixKey, CacheMetrics.BATCH, CacheMetrics.NULL_HIT, nullHits);
+            metrics.record(prefixKey, CacheMetrics.BATCH, CacheMetrics.MISS, missIds.size());
+        }
+        //3.未命中的id一次性从数据库中查询，并通过pipeline写回redis
+        if(!missIds.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID,R> loaded = dbFallback.apply(missIds);
+            metrics.recordLoad(prefixKey, CacheMetrics.BATCH, System.nanoTime() - begin);
+            byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = prefixKey + id;
+                    byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                    R r = loaded.get(id);
+                    if(r == null){
+                        connection.stringCommands().setEx(rawKey,
+                                TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL), new byte[0]);
+                    }else{
+                        connection.stringCommands().pSetEx(rawKey, jitter(time, unit), cacheCodec.encode(r));
+                        found.put(id, putLocal(key, r));
+                    }
+                }
+                return null;
+            });
+        }
+        //4.按照传入id的顺序返回
+        Map<ID,R> result = new LinkedHashMap<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
 
     /**
      * 查询数据
@@ -171,69 +440,225 @@ public class CacheClient {
      */
     public <R,ID> R queryWithLogicalExpire(
             String prefixKey, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
-        //用key查询redis是否存在缓存
+        return queryLogical(prefixKey, id, type, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 查询数据
+     * 在逻辑过期的基础上按照XFetch算法提前概率性地刷新缓存：
+     * 越接近过期时间、重建耗时越长，刷新的概率越大，使大量热点key的重建在时间上分散开，
+     * 避免在同一时刻过期后集中抢锁重建。这种方式同样需要对缓存进行预热。
+     * @param prefixKey 键的前缀
+     * @param id 数据id
+     * @param type redis获得的数据反序列化的类型
+     * @param dbFallback 函数式接口，传入lambda表达式重写其中的apply方法，用于返回数据库的查询结果
+     * @param time 缓存重建的TTL
+     * @param unit TTL的单位
+     * @param <R> 返回的数据
+     * @param <ID> 根据id查询数据库
+     * @return
+     */
+    public <R,ID> R queryWithEarlyRefresh(
+            String prefixKey, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        return queryLogical(prefixKey, id, type, dbFallback, time, unit, true);
+    }
+
+    private <R,ID> R queryLogical(String prefixKey, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                  Long time, TimeUnit unit, boolean earlyRefresh){
         String key = prefixKey + id;
-        String JSONStr = stringRedisTemplate.opsForValue().get(key);
+        String method = earlyRefresh ? CacheMetrics.EARLY_REFRESH : CacheMetrics.LOGICAL;
+        //先查询一级缓存，一级缓存的过期时间不超过逻辑过期时间
+        R local = getLocal(key, type);
+        if(local != null){
+            metrics.record(prefixKey, method, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //用key查询redis是否存在缓存
+        byte[] bytes = readable(byteRedisTemplate.opsForValue().get(key));
 
         //缓存未命中直接返回错误信息
-        if(StrUtil.isBlank(JSONStr)) {
+        if(bytes == null || bytes.length == 0) {
+            metrics.record(prefixKey, method, CacheMetrics.MISS);
             return null;
         }
 
-        //命中之后我们需要查看存入redis的过期时间是否过期。
-        RedisData redisData = JSONUtil.toBean(JSONStr,RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
+        //命中之后我们需要查看存入redis的过期时间是否过期，一次解码即可得到目标类型
+        RedisData redisData = cacheCodec.decodeLogical(bytes, type);
+        R r = type.cast(redisData.getData());
         /*判断逻辑过期时间是否过期：
             1.未过期直接将数据返回
             2.过期则将数据返回并开启一个线程来更新缓存
         */
+        LocalDateTime now = LocalDateTime.now();
+        if(earlyRefresh){
+            now = now.plus(earlyRefreshGap(redisData.getDelta()), ChronoUnit.MILLIS);
+        }
         //未过期
-        if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
-            return r;
+        if(redisData.getExpireTime().isAfter(now)){
+            metrics.record(prefixKey, method, CacheMetrics.HIT);
+            //一级缓存在逻辑过期(或提前刷新的时间点)之前失效，之后的查询重新判断是否需要重建
+            return putLocal(key, r, Duration.between(now, redisData.getExpireTime()).toMillis());
         }
+        metrics.record(prefixKey, method, CacheMetrics.STALE);
         //过期
         log.debug("缓存过期");
         String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
         //获得锁则将开启一个新的线程缓存进行重建
-        if(getLock(lockKey)){
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        String lockToken = getLock(lockKey);
+        if(lockToken != null){
+            boolean submitted = rebuildExecutor.submit(key, () -> {
                 try {
+                    //记录重建耗时，供提前刷新使用
+                    long begin = System.nanoTime();
                     R newR = dbFallback.apply(id);
-                    setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    long cost = System.nanoTime() - begin;
+                    metrics.recordLoad(prefixKey, method, cost);
+                    setWithLogicalExpire(key, newR, time, unit, TimeUnit.NANOSECONDS.toMillis(cost));
                 } finally {
-                    unlock(lockKey);
+                    unlock(lockKey, lockToken);
                 }
             });
+            //线程池已满或已有重建任务，释放锁并返回旧数据
+            if(!submitted){
+                unlock(lockKey, lockToken);
+            }
         }
         //未获得锁则直接返回旧数据
         return r;
 
     }
 
+    /**
+     * 编解码器无法读取的数据(旧版本格式)视为未命中，重新加载后覆盖
+     */
+    private byte[] readable(byte[] bytes){
+        return bytes == null || cacheCodec.canDecode(bytes) ? bytes : null;
+    }
+
+    /**
+     * XFetch算法中提前刷新的时长：delta * beta * -ln(rand)，rand为(0,1]上的随机数
+     * @param delta 重建数据的耗时(毫秒)，未记录时使用默认耗时
+     * @return 提前刷新的时长(毫秒)
+     */
+    private long earlyRefreshGap(Long delta){
+        if(delta == null || delta <= 0){
+            delta = RedisConstants.CACHE_DEFAULT_REBUILD_DELTA;
+        }
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return (long) (delta * RedisConstants.CACHE_EARLY_REFRESH_BETA * -Math.log(rand));
+    }
+
+    /**
+     * 为某个键前缀注册布隆过滤器，查询该前缀的数据前先判断id是否可能存在
+     * @param prefixKey 键的前缀
+     * @param filterKey 布隆过滤器的key
+     */
+    public void registerBloomFilter(String prefixKey, String filterKey){
+        bloomFilters.put(prefixKey, filterKey);
+    }
+
+    /**
+     * 判断数据是否可能存在，没有注册布隆过滤器的前缀一律视为可能存在
+     */
+    private boolean mightExist(String prefixKey, Object id){
+        String filterKey = bloomFilters.get(prefixKey);
+        return filterKey == null || bloomFilter.mightContain(filterKey, id);
+    }
+
+    /**
+     * 删除缓存，同时清除本节点的一级缓存并广播通知其他节点清除
+     * @param key 键
+     */
+    public void delete(String key){
+        delete(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量删除缓存，一次DEL删除所有key，并通过一条消息广播给其他节点
+     * @param keys 键
+     */
+    public void delete(Collection<String> keys){
+        if(keys.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(localCache::remove);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, String.join("\n", keys));
+    }
+
+    /**
+     * 接收其他节点广播的缓存失效消息，清除一级缓存
+     * @param message 消息体为失效的key，多个key以换行分隔
+     * @param pattern 订阅的频道
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String keys = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String key : keys.split("\n")) {
+            localCache.remove(key);
+        }
+    }
+
+    /**
+     * 从一级缓存中获取数据
+     * @param key 键
+     * @param type 数据类型
+     * @return 未命中或类型不符时返回null
+     */
+    private <R> R getLocal(String key, Class<R> type){
+        //不更新最后访问时间，否则频繁读取的key永远不会过期
+        Object value = localCache.get(key, false);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    /**
+     * 将数据放入一级缓存
+     * @param key 键
+     * @param value 数据
+     * @return 传入的数据
+     */
+    private <R> R putLocal(String key, R value){
+        if(value != null){
+            localCache.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 将数据放入一级缓存，过期时间不超过指定的毫秒数
+     * @param key 键
+     * @param value 数据
+     * @param maxTimeout 最长的过期时间(毫秒)
+     * @return 传入的数据
+     */
+    private <R> R putLocal(String key, R value, long maxTimeout){
+        if(value != null && maxTimeout > 0){
+            localCache.put(key, value,
+                    Math.min(maxTimeout, TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_LOCAL_TTL)));
+        }
+        return value;
+    }
 
     /**
      * 获取互斥锁
      * @param key
-     * @return
+     * @return 持有者标识，释放锁时使用；没有获取到锁返回null
      */
-    public Boolean getLock(String key){
+    public String getLock(String key){
+        String token = UUID.fastUUID().toString(true);
         //只有redis中不存在该key时才返回true
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent
-                (key, "1",RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        if(flag == null){
-            return false;
-        }
-        return flag;
+                (key, token,RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        return Boolean.TRUE.equals(flag) ? token : null;
     }
 
     /**
-     * 释放互斥锁
+     * 释放互斥锁，锁已过期并被其他节点获取时不会误删
      * @param key
+     * @param token 获取锁时返回的持有者标识
      */
-    public void unlock(String key){
-        stringRedisTemplate.delete(key);
+    public void unlock(String key, String token){
+        scriptRegistry.execute(RedisScriptRegistry.UNLOCK, Collections.singletonList(key), token);
     }
 
 }
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存数据的编解码器，CacheClient通过它读写redis中的值
+ */
+public interface CacheCodec {
+    /**
+     * 将数据编码为字节数组
+     * @param value 数据
+     * @return 编码后的字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 判断数据的格式是否能够解码，旧版本格式的数据返回false，CacheClient将其视为未命中
+     * @param bytes 编码后的字节
+     * @return 是否能够解码
+     */
+    default boolean canDecode(byte[] bytes) {
+        return true;
+    }
+
+    /**
+     * 将字节数组解码为指定类型的数据
+     * @param bytes 编码后的字节
+     * @param type 数据类型
+     * @param <T> 数据类型
+     * @return 数据
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 解码带逻辑过期时间的数据，返回的RedisData中data已经是指定类型
+     * @param bytes 编码后的字节
+     * @param type data的类型
+     * @param <T> data的类型
+     * @return 逻辑过期数据
+     */
+    <T> RedisData decodeLogical(byte[] bytes, Class<T> type);
+}
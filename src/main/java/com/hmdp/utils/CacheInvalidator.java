@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 数据库更新后的缓存失效
+ * 1.在事务提交之后才删除缓存，避免提交前并发读取的线程把旧数据重新写回缓存；同一个事务内的删除合并为一次
+ * 2.提交后再延迟一段时间删除第二次(延迟双删)，清除提交前后那段时间内被写回的旧数据；
+ *   延迟删除的key记录入队时间，定时把已经等待满间隔的key批量删除，多次写操作合并为一次DEL
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+    @Resource
+    CacheClient cacheClient;
+
+    //检查延迟删除队列的间隔(毫秒)，key实际的延迟在[间隔, 间隔+检查间隔)之间
+    private static final long FLUSH_TICK = Math.max(RedisConstants.CACHE_DELAY_DELETE_INTERVAL / 10, 10);
+
+    //等待延迟删除的key，按入队时间排序
+    private final Queue<DelayedKey> delayedKeys = new ConcurrentLinkedQueue<>();
+
+    private static final class DelayedKey {
+        private final String key;
+        //入队时间(System.nanoTime)
+        private final long enqueueTime;
+
+        DelayedKey(String key, long enqueueTime) {
+            this.key = key;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "cache-delay-delete"));
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(() -> flushDelayed(false), FLUSH_TICK, FLUSH_TICK, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdown();
+        flushDelayed(true);
+    }
+
+    /**
+     * 在当前事务提交后删除缓存，没有事务时立即删除
+     * @param key 缓存的key
+     */
+    public void deleteAfterCommit(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidate(Set.of(key));
+            return;
+        }
+        //同一个事务内需要删除的key绑定到当前事务上，提交后统一删除
+        @SuppressWarnings("unchecked")
+        Set<String> keys = (Set<String>) TransactionSynchronizationManager.getResource(this);
+        if (keys == null) {
+            Set<String> pending = new LinkedHashSet<>();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate(pending);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CacheInvalidator.this);
+                }
+            });
+            keys = pending;
+        }
+        keys.add(key);
+    }
+
+    /**
+     * 立即删除缓存，并加入延迟删除队列
+     */
+    private void invalidate(Set<String> keys) {
+        cacheClient.delete(keys);
+        long now = System.nanoTime();
+        keys.forEach(key -> delayedKeys.add(new DelayedKey(key, now)));
+    }
+
+    /**
+     * 批量删除已经等待满延迟间隔的key
+     * @param all 是否不等待间隔删除全部key，应用关闭时使用
+     */
+    private void flushDelayed(boolean all) {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(RedisConstants.CACHE_DELAY_DELETE_INTERVAL);
+        Set<String> keys = new LinkedHashSet<>();
+        DelayedKey head;
+        //队列按入队时间排序，遇到未满间隔的key即可停止
+        while ((head = delayedKeys.peek()) != null && (all || head.enqueueTime - deadline <= 0)) {
+            DelayedKey polled = delayedKeys.poll();
+            if (polled == null) break;
+            keys.add(polled.key);
+        }
+        if (keys.isEmpty()) return;
+        try {
+            cacheClient.delete(keys);
+        } catch (Exception e) {
+            log.error("延迟删除缓存失败，keys:{}", keys, e);
+        }
+    }
+}
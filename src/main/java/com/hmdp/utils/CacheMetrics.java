@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient的监控指标，按照键前缀和查询方式打标签，通过/actuator/metrics查看
+ * 1.cache.requests：查询结果计数，result标签区分一级缓存命中、命中、空值命中、未命中、返回旧数据、布隆过滤器拦截
+ * 2.cache.load：未命中时查询数据库并重建缓存的耗时
+ * 3.cache.lock.wait：等待其他线程或节点重建缓存的耗时
+ */
+@Component
+public class CacheMetrics {
+    //查询方式
+    public static final String PASS_THROUGH = "passThrough";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL = "logical";
+    public static final String EARLY_REFRESH = "earlyRefresh";
+    public static final String BATCH = "batch";
+    //查询结果
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String HIT = "hit";
+    public static final String NULL_HIT = "null_hit";
+    public static final String MISS = "miss";
+    public static final String STALE = "stale";
+    public static final String BLOOM_REJECTED = "bloom_rejected";
+
+    private final MeterRegistry registry;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 记录一次查询结果
+     * @param prefix 键的前缀
+     * @param method 查询方式
+     * @param result 查询结果
+     */
+    public void record(String prefix, String method, String result) {
+        record(prefix, method, result, 1);
+    }
+
+    /**
+     * 记录多次相同的查询结果，用于批量查询
+     */
+    public void record(String prefix, String method, String result, int count) {
+        if (count <= 0) return;
+        counters.computeIfAbsent(prefix + '|' + method + '|' + result, k -> Counter.builder("cache.requests")
+                .tag("prefix", prefix).tag("method", method).tag("result", result)
+                .register(registry)).increment(count);
+    }
+
+    /**
+     * 记录查询数据库并重建缓存的耗时
+     * @param prefix 键的前缀
+     * @param method 查询方式
+     * @param nanos 耗时(纳秒)
+     */
+    public void recordLoad(String prefix, String method, long nanos) {
+        timers.computeIfAbsent("load|" + prefix + '|' + method, k -> Timer.builder("cache.load")
+                .tag("prefix", prefix).tag("method", method)
+                .publishPercentileHistogram()
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录等待缓存重建的耗时
+     * @param prefix 键的前缀
+     * @param nanos 耗时(纳秒)
+     */
+    public void recordLockWait(String prefix, long nanos) {
+        timers.computeIfAbsent("lock|" + prefix, k -> Timer.builder("cache.lock.wait")
+                .tag("prefix", prefix)
+                .publishPercentileHistogram()
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存重建线程池
+ * 1.队列有界，队列已满时拒绝任务，调用方继续返回旧数据
+ * 2.同一个key同时只有一个重建任务排队或执行
+ * 3.任务中的异常会被记录，并统计队列长度、重建耗时、失败和拒绝次数
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    private final ThreadPoolExecutor executor;
+    //已提交但还未执行完的key
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final MeterRegistry registry;
+    private final Timer rebuildTimer;
+    private final Counter failureCounter;
+    private final Counter rejectedCounter;
+    private final Counter dedupCounter;
+
+    public CacheRebuildExecutor(MeterRegistry registry) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                SystemConstants.CACHE_REBUILD_POOL_SIZE, SystemConstants.CACHE_REBUILD_POOL_SIZE,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(SystemConstants.CACHE_REBUILD_QUEUE_CAPACITY),
+                r -> new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.registry = registry;
+        this.rebuildTimer = Timer.builder("cache.rebuild.latency")
+                .description("缓存重建耗时").register(registry);
+        this.failureCounter = Counter.builder("cache.rebuild.failures")
+                .description("缓存重建失败次数").register(registry);
+        this.rejectedCounter = Counter.builder("cache.rebuild.rejected")
+                .description("线程池已满被拒绝的重建次数").register(registry);
+        this.dedupCounter = Counter.builder("cache.rebuild.deduplicated")
+                .description("同一个key已有重建任务而被合并的次数").register(registry);
+        Gauge.builder("cache.rebuild.queue.size", executor, e -> e.getQueue().size())
+                .description("等待执行的重建任务数").register(registry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("正在执行的重建任务数").register(registry);
+    }
+
+    /**
+     * 提交缓存重建任务
+     * @param key 重建的缓存key
+     * @param task 重建任务
+     * @return 是否提交成功，同一个key已有任务或者线程池已满时返回false，调用方应继续使用旧数据
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            dedupCounter.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                Timer.Sample sample = Timer.start(registry);
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failureCounter.increment();
+                    log.error("缓存重建失败，key:{}", key, e);
+                } finally {
+                    pendingKeys.remove(key);
+                    sample.stop(rebuildTimer);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingKeys.remove(key);
+            rejectedCounter.increment();
+            log.warn("缓存重建线程池已满，继续使用旧数据，key:{}", key);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
     /**
      * 获取锁
@@ -8,5 +10,23 @@ public interface ILock {
      */
     boolean tryLock(Long timeoutSec);
 
+    /**
+     * 在等待时间内获取锁，默认实现每隔一段时间重试一次
+     * @param waitTime 最长等待时间
+     * @param unit 时间单位
+     * @return 锁是否获取成功
+     */
+    default boolean tryLock(long waitTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        long timeoutSec = TimeUnit.MILLISECONDS.toSeconds(RedisConstants.LOCK_WATCHDOG_TIMEOUT);
+        while (!tryLock(timeoutSec)) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(RedisConstants.CACHE_REBUILD_RETRY_INTERVAL);
+        }
+        return true;
+    }
+
     void unlock();
 }
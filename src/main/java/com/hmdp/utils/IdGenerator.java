@@ -0,0 +1,10 @@
+package com.hmdp.utils;
+
+public interface IdGenerator {
+    /**
+     * 生成全局唯一ID
+     * @param keyPrefix 业务前缀
+     * @return ID
+     */
+    long nextId(String keyPrefix);
+}
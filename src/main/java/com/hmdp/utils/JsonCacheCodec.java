@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基于hutool JSON的编解码器，与原来直接写入JSON字符串的格式相同
+ */
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        //只解析一次JSON文本，再将data转换为目标类型
+        RedisData data = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8)).toBean(RedisData.class);
+        data.setData(((JSONObject) data.getData()).toBean(type));
+        return data;
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于redis bitmap实现的布隆过滤器，用于拦截数据库中不存在的id，解决缓存穿透
+ * 1.redis中的bitmap是权威数据，所有节点共享
+ * 2.本地保存一份位图镜像，本地命中的id不需要访问redis；本地未命中时再查询redis，防止漏掉其他节点新增的id
+ * 布隆过滤器不支持删除，被删除的id会一直误判为存在，由缓存空值兜底；需要剔除时删除redis中的位图后重启即可重新加载
+ */
+@Slf4j
+@Component
+public class RedisBloomFilter {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    //本地位图镜像
+    private final Map<String, AtomicLongArray> localBits = new ConcurrentHashMap<>();
+    //已经加载完成的过滤器，未加载完成前所有id都视为存在
+    private final Set<String> readyFilters = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 向过滤器中添加id
+     * @param filterKey 过滤器的key
+     * @param id 数据id
+     */
+    public void add(String filterKey, Object id) {
+        long[] offsets = offsets(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.setBit(filterKey, offset, true);
+            }
+            return null;
+        });
+        setLocal(filterKey, offsets);
+    }
+
+    /**
+     * 批量向过滤器中添加id，所有SETBIT在一次pipeline中完成
+     * @param filterKey 过滤器的key
+     * @param ids 数据id
+     */
+    public void addAll(String filterKey, Collection<?> ids) {
+        if (ids.isEmpty()) return;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Object id : ids) {
+                long[] offsets = offsets(id);
+                for (long offset : offsets) {
+                    conn.setBit(filterKey, offset, true);
+                }
+                setLocal(filterKey, offsets);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param filterKey 过滤器的key
+     * @param id 数据id
+     * @return false表示一定不存在，true表示可能存在
+     */
+    public boolean mightContain(String filterKey, Object id) {
+        //过滤器还未加载完成，不能拦截
+        if (!readyFilters.contains(filterKey)) return true;
+        long[] offsets = offsets(id);
+        if (containsLocal(filterKey, offsets)) return true;
+        //本地镜像未命中，查询redis中的位图
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                conn.getBit(filterKey, offset);
+            }
+            return null;
+        });
+        for (Object bit : bits) {
+            if (!Boolean.TRUE.equals(bit)) return false;
+        }
+        //其他节点新增的id，同步到本地镜像
+        setLocal(filterKey, offsets);
+        return true;
+    }
+
+    /**
+     * 标记过滤器已加载完成，此后开始拦截不存在的id
+     * @param filterKey 过滤器的key
+     */
+    public void markReady(String filterKey) {
+        readyFilters.add(filterKey);
+    }
+
+    /**
+     * 计算id在位图中的k个偏移量，使用murmur128的两个64位结果做双重哈希
+     */
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(id.toString());
+        long[] offsets = new long[RedisConstants.BLOOM_HASH_COUNT];
+        for (int i = 0; i < offsets.length; i++) {
+            long combined = hash[0] + i * hash[1];
+            offsets[i] = (combined & Long.MAX_VALUE) % RedisConstants.BLOOM_BIT_SIZE;
+        }
+        return offsets;
+    }
+
+    private void setLocal(String filterKey, long[] offsets) {
+        if (!RedisConstants.BLOOM_LOCAL_MIRROR) return;
+        AtomicLongArray words = localBits.computeIfAbsent(filterKey,
+                k -> new AtomicLongArray((int) (RedisConstants.BLOOM_BIT_SIZE >>> 6)));
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << (offset & 63);
+            long word;
+            do {
+                word = words.get(index);
+            } while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    private boolean containsLocal(String filterKey, long[] offsets) {
+        AtomicLongArray words = localBits.get(filterKey);
+        if (words == null) return false;
+        for (long offset : offsets) {
+            if ((words.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) return false;
+        }
+        return true;
+    }
+}
@@ -11,13 +11,76 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_TYPELIST_KEY = "cache:typelist:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
+    //进程内一级缓存的容量和TTL(秒)
+    public static final int CACHE_LOCAL_CAPACITY = 10000;
+    public static final Long CACHE_LOCAL_TTL = 60L;
+    //缓存TTL随机抖动的比例
+    public static final double CACHE_TTL_JITTER_RATIO = 0.1;
+    //提前刷新(XFetch)的系数，越大越倾向于提前刷新
+    public static final double CACHE_EARLY_REFRESH_BETA = 1.0;
+    //没有记录重建耗时的数据，提前刷新时使用的默认耗时(毫秒)
+    public static final Long CACHE_DEFAULT_REBUILD_DELTA = 50L;
+    //缓存数据超过该字节数时进行压缩
+    public static final int CACHE_COMPRESS_THRESHOLD = 1024;
+    //延迟双删的间隔(毫秒)，事务提交后删除一次缓存，间隔后再删除一次
+    public static final Long CACHE_DELAY_DELETE_INTERVAL = 500L;
+    //缓存失效广播的频道
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    //布隆过滤器的key、位图大小和哈希函数个数，按100万条数据估算误判率约为万分之五
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_BLOG_KEY = "bloom:blog";
+    public static final String BLOOM_USER_KEY = "bloom:user";
+    public static final long BLOOM_BIT_SIZE = 1L << 24;
+    public static final int BLOOM_HASH_COUNT = 7;
+    //是否在本地保存位图镜像
+    public static final boolean BLOOM_LOCAL_MIRROR = true;
+
+    //可重入分布式锁(hash)的key前缀、释放锁时通知等待线程的频道前缀
+    //与lock:开头的字符串锁(SimpleRedisLock、lock:shop:)使用不同的前缀，同名时不会出现WRONGTYPE
+    public static final String LOCK_KEY = "rlock:";
+    public static final String LOCK_CHANNEL_PREFIX = "lock:channel:";
+    //未指定持有时间时锁的默认过期时间(毫秒)，持有期间看门狗每隔三分之一的时间续期一次
+    public static final Long LOCK_WATCHDOG_TIMEOUT = 30000L;
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    //等待缓存重构的最长时间和轮询间隔(毫秒)
+    public static final Long CACHE_REBUILD_WAIT_TIMEOUT = 3000L;
+    public static final Long CACHE_REBUILD_RETRY_INTERVAL = 50L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀开始、结束时间(毫秒时间戳)的hash，字段为begin和end，epoch为库存初始化的次数
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    //秒杀库存的分段数，默认为1即单key模式，大于1时库存拆分为seckill:stock:{seckill:i}:voucherId
+    public static final int SECKILL_STOCK_SHARDS = 1;
+    //优惠券售罄、补充库存时广播的频道，消息体为优惠券id:epoch
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_REPLENISH_CHANNEL = "seckill:replenish";
+    //秒杀订单的消息队列和消费者组
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //多次处理失败的订单转移到的死信队列
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    //附近商铺的查询结果缓存，按(类型, 半径, 位置网格, 用户)保存店铺id和距离，翻页时直接从中读取
+    public static final String SHOP_GEO_RESULT_KEY = "shop:geo:result:";
+    public static final Long SHOP_GEO_RESULT_TTL = 60L;
+    //店铺新增、修改、删除后通知各节点更新本地空间索引的频道，消息体为店铺id
+    public static final String SHOP_GEO_CHANGED_CHANNEL = "shop:geo:changed";
+    //店铺按评分、销量、均价、评论数排名的有序集合，shop:rank:{维度}:{类型}
+    public static final String SHOP_RANK_KEY = "shop:rank:";
+    //全量重建时临时有序集合的过期时间(秒)，预热中断时自动清理
+    public static final Long SHOP_RANK_REBUILD_TTL = 3600L;
+    //店铺新增、修改、删除后通知各节点更新本地名称索引的频道，消息体为店铺id
+    public static final String SHOP_SEARCH_CHANGED_CHANNEL = "shop:search:changed";
+    //雪花算法机器id的租约key和租约时间(秒)
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_LEASE_TTL = 60L;
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -1,39 +1,258 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局ID生成器，ID由时间戳和当天的序列号组成
+ * 序列号采用号段模式：每次通过INCRBY从redis申请一段序列号，在内存中依次发放，
+ * 当前号段用掉一部分后异步预取下一个号段(双缓冲)，当前号段用完时直接切换，几乎不需要等待redis
+ * 同一个节点生成的ID单调递增，不同节点的号段互不重叠
+ * 开启雪花模式后改用SnowflakeIdGenerator，只在启动时从redis租一个机器id并定时续租，生成ID不访问redis；
+ * 租约在本地记录有效期，续租连续失败超过有效期后拒绝生成ID，避免租约过期被其他节点占用后生成重复的ID
+ */
 @Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
     // 2023.1.1的时间戳
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     //序列号的位数
     private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //业务前缀 -> 号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    //异步预取号段的线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //雪花模式的生成器和租到的机器id
+    private SnowflakeIdGenerator snowflake;
+    private String workerToken;
+    private volatile long workerId;
+    //租约在本地的有效期(System.nanoTime)，比redis中的过期时间早，超过后不再生成ID
+    private volatile long leaseDeadline;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!SystemConstants.ID_SNOWFLAKE_MODE) {
+            return;
+        }
+        workerToken = UUID.fastUUID().toString(true);
+        long begin = System.nanoTime();
+        workerId = leaseWorkerId();
+        leaseDeadline = begin + leaseValidNanos();
+        snowflake = new SnowflakeIdGenerator(workerId);
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //每四分之一租约时间续租一次，本地有效期为四分之三租约时间，可以容忍两次续租失败
+        long interval = TimeUnit.SECONDS.toMillis(RedisConstants.ID_WORKER_LEASE_TTL) / 4;
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdown();
+        //主动释放机器id
+        scriptRegistry.execute(RedisScriptRegistry.UNLOCK,
+                Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), workerToken);
+    }
+
+    /**
+     * 依次尝试租用机器id，SET NX保证同一时刻一个机器id只属于一个节点
+     */
+    private long leaseWorkerId() {
+        for (long id = 0; id <= SnowflakeIdGenerator.MAX_WORKER_ID; id++) {
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.ID_WORKER_KEY + id,
+                    workerToken, RedisConstants.ID_WORKER_LEASE_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                log.info("租用机器id：{}", id);
+                return id;
+            }
+        }
+        throw new RuntimeException("没有可用的机器id");
+    }
+
+    /**
+     * 续租机器id，成功后延长本地有效期；redis暂时不可用时本地有效期不变，到期后停止生成ID；
+     * 续租失败说明租约已过期并被其他节点占用(此时本地有效期早已过去，不会生成重复的ID)，重新租用
+     */
+    private void heartbeat() {
+        long begin = System.nanoTime();
+        try {
+            Long res = scriptRegistry.execute(RedisScriptRegistry.LOCK_RENEW,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), workerToken,
+                    String.valueOf(TimeUnit.SECONDS.toMillis(RedisConstants.ID_WORKER_LEASE_TTL)));
+            if (res == null || res != 1L) {
+                log.warn("机器id{}的租约已被占用，重新租用", workerId);
+                long id = leaseWorkerId();
+                snowflake.setWorkerId(id);
+                workerId = id;
+            }
+            //有效期从发起续租的时间开始计算，不会晚于redis中的过期时间
+            leaseDeadline = begin + leaseValidNanos();
+        } catch (Exception e) {
+            log.warn("续租机器id失败，workerId:{}", workerId, e);
+        }
+    }
+
+    /**
+     * 租约在本地的有效时长，取四分之三的租约时间，留出时钟误差和网络延迟的余量
+     */
+    private static long leaseValidNanos() {
+        return TimeUnit.SECONDS.toNanos(RedisConstants.ID_WORKER_LEASE_TTL) / 4 * 3;
+    }
 
+    @Override
     public long nextId(String keyPrefix) {
+        if (snowflake != null) {
+            //先检查租约再生成ID，租约过期后机器id可能已被其他节点占用
+            if (System.nanoTime() - leaseDeadline >= 0) {
+                throw new RuntimeException("机器id" + workerId + "的租约已过期，等待续租成功后才能生成ID");
+            }
+            return snowflake.nextId(keyPrefix);
+        }
+        //时间戳和号段的日期来自同一次读取的时间
         LocalDateTime now = LocalDateTime.now();
         //1.获取时间戳
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         //2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
 
-        // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        // 2.2.从该日期的号段中获取序列号
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date);
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 从redis申请一个号段
+     */
+    private Segment allocate(String keyPrefix, String date) {
+        long step = SystemConstants.ID_SEGMENT_STEP;
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        if (end == null) {
+            throw new RuntimeException("申请ID号段失败");
+        }
+        return new Segment(date, end - step + 1, end);
+    }
+
+    /**
+     * 号段：[start, max]范围内的序列号
+     */
+    private static class Segment {
+        private final String date;
+        private final AtomicLong value;
+        private final long max;
+
+        Segment(String date, long start, long max) {
+            this.date = date;
+            this.value = new AtomicLong(start);
+            this.max = max;
+        }
+    }
+
+    /**
+     * 一个业务前缀的双号段缓冲
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(String date) {
+            while (true) {
+                Segment segment = current;
+                //只使用与时间戳同一天的号段，跨天时不能借用另一天的号段，否则时间戳与序列号属于不同的天，可能生成重复的ID
+                if (segment != null && segment.date.equals(date)) {
+                    long value = segment.value.getAndIncrement();
+                    if (value <= segment.max) {
+                        //当前号段已使用一定比例，预取下一个号段
+                        if (next == null && segment.max - value < SystemConstants.ID_SEGMENT_STEP * (1 - SystemConstants.ID_SEGMENT_PREFETCH_RATIO)) {
+                            prefetch(segment);
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        /**
+         * 当前号段用完或日期不同时切换号段，优先使用已预取的号段，否则同步申请
+         * 跨天的瞬间新旧日期的线程可能交替切换，每次都申请对应日期的新号段，不会重复
+         */
+        private synchronized void switchSegment(Segment exhausted, String date) {
+            if (current != exhausted) {
+                //其他线程已经切换
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            current = prefetched != null && prefetched.date.equals(date) ? prefetched : allocate(keyPrefix, date);
+        }
+
+        private void prefetch(Segment segment) {
+            if (!prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            prefetchExecutor.execute(() -> {
+                try {
+                    Segment loaded = allocate(keyPrefix, segment.date);
+                    synchronized (this) {
+                        if (next == null && current == segment) {
+                            next = loaded;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("预取ID号段失败，prefix:{}", keyPrefix, e);
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+    }
+
     /**
      * 计算2023.1.1的时间戳
      * @param args
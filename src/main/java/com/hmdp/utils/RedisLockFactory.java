@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 可重入分布式锁的工厂，负责各个锁共享的资源：
+ * 1.节点标识，与线程id一起作为锁的持有者标识
+ * 2.看门狗线程，定时为没有指定持有时间的锁续期
+ * 3.订阅锁释放的频道，唤醒本节点等待该锁的线程
+ */
+@Slf4j
+@Component
+public class RedisLockFactory implements MessageListener {
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    private final String nodeId = UUID.fastUUID().toString(true);
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //锁名称 -> 等待该锁的线程
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+    //锁名称:持有者 -> 续期任务
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+
+    /**
+     * 获取可重入锁
+     * @param name 锁的名称
+     */
+    public ILock getLock(String name) {
+        return new ReentrantRedisLock(this, name);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 收到锁释放的消息，唤醒一个等待线程重新竞争锁
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Waiters w = waiters.get(channel.substring(RedisConstants.LOCK_CHANNEL_PREFIX.length()));
+        if (w != null) {
+            w.semaphore.release();
+        }
+    }
+
+    String owner() {
+        return nodeId + ":" + Thread.currentThread().getId();
+    }
+
+    RedisScriptRegistry scriptRegistry() {
+        return scriptRegistry;
+    }
+
+    /**
+     * 登记等待线程，等待结束后必须调用leave
+     */
+    Semaphore enter(String name) {
+        return waiters.compute(name, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count.incrementAndGet();
+            return w;
+        }).semaphore;
+    }
+
+    void leave(String name) {
+        waiters.computeIfPresent(name, (k, w) -> w.count.decrementAndGet() == 0 ? null : w);
+    }
+
+    /**
+     * 开始为锁续期，同一个持有者重入时只保留一个续期任务
+     */
+    void startRenewal(String name, String key, String owner) {
+        renewals.computeIfAbsent(name + ":" + owner, k -> {
+            long interval = RedisConstants.LOCK_WATCHDOG_TIMEOUT / 3;
+            return watchdog.scheduleWithFixedDelay(() -> renew(name, key, owner), interval, interval, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    void stopRenewal(String name, String owner) {
+        ScheduledFuture<?> future = renewals.remove(name + ":" + owner);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void renew(String name, String key, String owner) {
+        try {
+            Long res = scriptRegistry.execute(RedisScriptRegistry.REENTRANT_RENEW, Collections.singletonList(key),
+                    owner, String.valueOf(RedisConstants.LOCK_WATCHDOG_TIMEOUT));
+            if (res == null || res != 1L) {
+                //锁已不存在，停止续期
+                stopRenewal(name, owner);
+            }
+        } catch (Exception e) {
+            log.warn("锁续期失败，key:{}", key, e);
+        }
+    }
+
+    private static class Waiters {
+        private final Semaphore semaphore = new Semaphore(0);
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
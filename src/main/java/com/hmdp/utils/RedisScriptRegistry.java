@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * lua脚本注册中心
+ * 1.启动时读取classpath下的所有脚本并通过SCRIPT LOAD加载到redis，记录每个脚本的SHA
+ * 2.执行时只发送SHA(EVALSHA)，不需要每次传输脚本内容
+ * 3.redis重启或切换节点后脚本缓存丢失会返回NOSCRIPT，此时改用EVAL执行一次，redis会重新缓存该脚本
+ * 所有脚本都返回整数或nil
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+    //脚本名称，对应classpath下的{name}.lua
+    public static final String SECKILL = "seckill";
+    public static final String SECKILL_SHARD = "seckill_shard";
+    public static final String SECKILL_TAKE = "seckill_take";
+    public static final String UNLOCK = "unlock";
+    public static final String LOCK_RENEW = "lock_renew";
+    public static final String REENTRANT_LOCK = "reentrant_lock";
+    public static final String REENTRANT_UNLOCK = "reentrant_unlock";
+    public static final String REENTRANT_RENEW = "reentrant_renew";
+    public static final String SHOP_GEO_STORE = "shop_geo_store";
+    public static final String SHOP_RANK_SWAP = "shop_rank_swap";
+    private static final List<String> SCRIPTS = List.of(SECKILL, SECKILL_SHARD, SECKILL_TAKE, UNLOCK, LOCK_RENEW,
+            REENTRANT_LOCK, REENTRANT_UNLOCK, REENTRANT_RENEW, SHOP_GEO_STORE, SHOP_RANK_SWAP);
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    //脚本名称 -> 脚本内容
+    private final Map<String, byte[]> sources = new HashMap<>();
+    //脚本名称 -> SHA
+    private final Map<String, String> shas = new HashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        for (String name : SCRIPTS) {
+            byte[] source;
+            try (InputStream in = new ClassPathResource(name + ".lua").getInputStream()) {
+                source = IoUtil.readBytes(in);
+            }
+            String sha = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.scriptingCommands().scriptLoad(source));
+            sources.put(name, source);
+            shas.put(name, sha);
+            log.debug("加载lua脚本，name:{}，sha:{}", name, sha);
+        }
+    }
+
+    /**
+     * 执行脚本
+     * @param name 脚本名称
+     * @param keys 脚本的KEYS
+     * @param args 脚本的ARGV
+     * @return 脚本的返回值
+     */
+    public Long execute(String name, List<String> keys, String... args) {
+        String sha = shas.get(name);
+        if (sha == null) {
+            throw new IllegalArgumentException("脚本不存在：" + name);
+        }
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+            RedisScriptingCommands commands = connection.scriptingCommands();
+            try {
+                return commands.evalSha(sha, ReturnType.INTEGER, keys.size(), keysAndArgs);
+            } catch (RuntimeException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                log.warn("redis中不存在脚本{}，重新加载", name);
+                return commands.eval(sources.get(name), ReturnType.INTEGER, keys.size(), keysAndArgs);
+            }
+        });
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可重入的分布式锁，通过RedisLockFactory获取
+ * 1.锁是一个hash，字段为持有者标识(节点标识:线程id)，值为重入次数
+ * 2.获取、释放都在lua脚本中完成，保证原子性
+ * 3.没有指定持有时间时由看门狗定时续期，业务执行时间超过过期时间也不会丢失锁；节点宕机后锁在过期时间后自动释放
+ * 4.获取失败的线程不轮询，等待锁释放时发布的消息或锁的剩余时间结束后再重试
+ */
+public class ReentrantRedisLock implements ILock {
+    private final RedisLockFactory factory;
+    private final String name;
+    private final List<String> keys;
+    private final String channel;
+
+    ReentrantRedisLock(RedisLockFactory factory, String name) {
+        this.factory = factory;
+        this.name = name;
+        this.keys = Collections.singletonList(RedisConstants.LOCK_KEY + name);
+        this.channel = RedisConstants.LOCK_CHANNEL_PREFIX + name;
+    }
+
+    /**
+     * 获取锁，不等待
+     * @param timeoutSec 锁持有的超时，过期自动释放，不会续期
+     */
+    @Override
+    public boolean tryLock(Long timeoutSec) {
+        return tryAcquire(factory.owner(), TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
+    }
+
+    /**
+     * 在等待时间内获取锁，获取成功后由看门狗续期直到释放
+     */
+    @Override
+    public boolean tryLock(long waitTime, TimeUnit unit) throws InterruptedException {
+        String owner = factory.owner();
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        //先登记等待再第一次尝试获取，获取失败到开始等待之间释放锁的消息也能唤醒本线程
+        Semaphore semaphore = factory.enter(name);
+        try {
+            //每次尝试获取前清空许可，之前的释放消息已经体现在这次尝试的结果中，
+            //只有尝试之后的释放消息才需要唤醒，避免残留的许可让等待线程反复空转
+            semaphore.drainPermits();
+            Long ttl = tryAcquireWithWatchdog(owner);
+            if (ttl == null) {
+                return true;
+            }
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                //等待锁释放的消息，最多等到锁过期
+                semaphore.tryAcquire(Math.min(TimeUnit.MILLISECONDS.toNanos(ttl), remaining), TimeUnit.NANOSECONDS);
+                semaphore.drainPermits();
+                ttl = tryAcquireWithWatchdog(owner);
+                if (ttl == null) {
+                    return true;
+                }
+            }
+        } finally {
+            factory.leave(name);
+        }
+    }
+
+    @Override
+    public void unlock() {
+        String owner = factory.owner();
+        Long res = factory.scriptRegistry().execute(RedisScriptRegistry.REENTRANT_UNLOCK, keys,
+                owner, String.valueOf(RedisConstants.LOCK_WATCHDOG_TIMEOUT), channel);
+        if (res == null) {
+            factory.stopRenewal(name, owner);
+            throw new IllegalMonitorStateException("当前线程没有持有锁：" + name);
+        }
+        if (res == 1L) {
+            factory.stopRenewal(name, owner);
+        }
+    }
+
+    private Long tryAcquireWithWatchdog(String owner) {
+        Long ttl = tryAcquire(owner, RedisConstants.LOCK_WATCHDOG_TIMEOUT);
+        if (ttl == null) {
+            factory.startRenewal(name, keys.get(0), owner);
+        }
+        return ttl;
+    }
+
+    /**
+     * @return 获取成功返回null，失败返回锁的剩余时间(毫秒)
+     */
+    private Long tryAcquire(String owner, long leaseMillis) {
+        Long ttl = factory.scriptRegistry().execute(RedisScriptRegistry.REENTRANT_LOCK, keys,
+                owner, String.valueOf(leaseMillis));
+        //锁没有过期时间时不会出现，防止等待时间为负数
+        return ttl == null ? null : Math.max(ttl, 1L);
+    }
+}
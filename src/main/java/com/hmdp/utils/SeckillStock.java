@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存的预扣减
+ * 1.单key模式(分段数为1)：seckill.lua在一个key上判断库存、一人一单并发送订单消息
+ * 2.分段模式(分段数大于1，默认关闭)：库存拆分为多个分段，第i个分段的库存、下单用户、秒杀时间和订单stream
+ *   都使用hash tag {seckill:i}，例如seckill:stock:{seckill:i}:voucherId、stream.orders:{seckill:i}，
+ *   同一分段的key在同一个slot上，不同分段可以分布在集群的不同节点，每个脚本只访问一个分段，不会出现CROSSSLOT。
+ *   用户固定属于userId % 分段数的分段，先在所属分段上判断一人一单并扣减；所属分段库存不足时在该分段登记用户占位，
+ *   再依次从其他分段扣减，扣减成功的分段登记用户并向本分段的stream发送订单消息，全部不足时撤销占位。
+ *   同一用户的请求都先经过所属分段，占位保证了跨分段的一人一单。每个分段的stream由各自的消费者处理。
+ *   分段库存不存在(开启分段前按单key初始化)的优惠券继续使用单key脚本
+ * 3.秒杀时间：开始、结束时间与库存一起保存在seckill:meta中，脚本使用redis服务器时间判断，不需要查询数据库
+ * 4.售罄标记：脚本返回库存不足后在本地标记该优惠券已售罄并广播给所有节点，之后的请求直接拒绝，不再访问redis；
+ *   每次初始化库存时递增seckill:meta:voucherId中的epoch，售罄、补充库存的消息都带上epoch，
+ *   售罄标记记录扣减前已知的epoch，补充库存之前发起的扣减得到的售罄结果epoch较小，会被忽略；
+ *   重新初始化库存时清除所有节点的标记
+ */
+@Slf4j
+@Component
+public class SeckillStock implements MessageListener {
+    //扣减结果：成功、库存不足、重复下单、秒杀未开始、秒杀已结束
+    public static final int SUCCESS = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+    //分段脚本的内部结果：分段库存不存在、所属分段库存不足并已登记占位
+    private static final int UNSHARDED = 5;
+    private static final int RESERVED = 6;
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    //本节点已知售罄的优惠券 -> 售罄时的epoch
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    //本节点已知的每张优惠券最新的epoch
+    private final Map<Long, Long> epochs = new ConcurrentHashMap<>();
+
+    /**
+     * 初始化秒杀库存和秒杀时间，分段模式下库存平均分配到各个分段，余数分配给前面的分段，每个分段保存一份秒杀时间
+     * @param voucherId 优惠券id
+     * @param stock 库存
+     * @param beginTime 秒杀开始时间
+     * @param endTime 秒杀结束时间
+     */
+    public void init(Long voucherId, int stock, LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> meta = Map.of(
+                "begin", String.valueOf(toMillis(beginTime)),
+                "end", String.valueOf(toMillis(endTime)));
+        int shards = RedisConstants.SECKILL_STOCK_SHARDS;
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_META_KEY + voucherId, meta);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+                stringRedisTemplate.opsForHash().putAll(metaKey(voucherId, i), meta);
+            }
+        }
+        //库存已补充，递增epoch并清除所有节点更早的售罄标记
+        Long epoch = stringRedisTemplate.opsForHash().increment(RedisConstants.SECKILL_META_KEY + voucherId, "epoch", 1);
+        replenished(voucherId, epoch);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_REPLENISH_CHANNEL, voucherId + ":" + epoch);
+    }
+
+    /**
+     * 判断秒杀时间，预扣减库存并发送订单消息
+     * @return SUCCESS、SOLD_OUT、DUPLICATE、NOT_STARTED或ENDED
+     */
+    public int deduct(Long voucherId, Long userId, long orderId) {
+        //已售罄的优惠券直接拒绝
+        if (soldOut.containsKey(voucherId)) {
+            return SOLD_OUT;
+        }
+        //扣减前已知的epoch，扣减期间库存被补充时这次的售罄结果已经过时
+        long epoch = epoch(voucherId);
+        int res = doDeduct(voucherId, userId, orderId);
+        if (res == SOLD_OUT && markSoldOut(voucherId, epoch)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId + ":" + epoch);
+        }
+        return res;
+    }
+
+    /**
+     * 接收其他节点广播的售罄、补充库存消息，更新本地的售罄标记
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        //消息体为voucherId:epoch
+        String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        Long voucherId = Long.valueOf(body[0]);
+        long epoch = Long.parseLong(body[1]);
+        if (RedisConstants.SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            markSoldOut(voucherId, epoch);
+        } else {
+            replenished(voucherId, epoch);
+        }
+    }
+
+    /**
+     * 本节点已知的epoch，第一次扣减时从redis读取，之后通过补充库存的消息更新
+     */
+    private long epoch(Long voucherId) {
+        return epochs.computeIfAbsent(voucherId, id -> {
+            Object epoch = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_META_KEY + id, "epoch");
+            return epoch == null ? 0L : Long.parseLong(epoch.toString());
+        });
+    }
+
+    /**
+     * 标记售罄，epoch早于已知的最新epoch时说明之后补充过库存，忽略
+     * @return 是否新增了售罄标记
+     */
+    private synchronized boolean markSoldOut(Long voucherId, long epoch) {
+        Long known = epochs.get(voucherId);
+        if ((known != null && known > epoch) || soldOut.containsKey(voucherId)) {
+            return false;
+        }
+        soldOut.put(voucherId, epoch);
+        epochs.merge(voucherId, epoch, Math::max);
+        return true;
+    }
+
+    /**
+     * 补充库存，清除早于该epoch的售罄标记
+     */
+    private synchronized void replenished(Long voucherId, long epoch) {
+        epochs.merge(voucherId, epoch, Math::max);
+        Long soldOutEpoch = soldOut.get(voucherId);
+        if (soldOutEpoch != null && soldOutEpoch < epoch) {
+            soldOut.remove(voucherId);
+        }
+    }
+
+    private int doDeduct(Long voucherId, Long userId, long orderId) {
+        int shards = RedisConstants.SECKILL_STOCK_SHARDS;
+        if (shards <= 1) {
+            return deductSingle(voucherId, userId, orderId);
+        }
+        String[] args = {userId.toString(), voucherId.toString(), String.valueOf(orderId)};
+        int home = (int) Math.floorMod(userId, (long) shards);
+        int res = scriptRegistry.execute(RedisScriptRegistry.SECKILL_SHARD,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), metaKey(voucherId, home),
+                        orderStream(home)), args).intValue();
+        //开启分段之前按单key初始化的优惠券没有分段库存，继续使用单key
+        if (res == UNSHARDED) {
+            return deductSingle(voucherId, userId, orderId);
+        }
+        if (res != RESERVED) {
+            return res;
+        }
+        //所属分段库存不足，用户已在所属分段占位，依次从其他分段扣减
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            res = scriptRegistry.execute(RedisScriptRegistry.SECKILL_TAKE,
+                    Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard), orderStream(shard)),
+                    args).intValue();
+            if (res == SUCCESS) {
+                return SUCCESS;
+            }
+        }
+        //所有分段都不足，撤销占位
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return SOLD_OUT;
+    }
+
+    private int deductSingle(Long voucherId, Long userId, long orderId) {
+        Long res = scriptRegistry.execute(RedisScriptRegistry.SECKILL, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        return res.intValue();
+    }
+
+    /**
+     * 第shard个分段的订单stream，分段数大于1时每个分段都需要启动消费者
+     */
+    public static String orderStream(int shard) {
+        return RedisConstants.SECKILL_ORDER_STREAM + ":" + shardTag(shard);
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + shardTag(shard) + ":" + voucherId;
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + shardTag(shard) + ":" + voucherId;
+    }
+
+    private static String metaKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_META_KEY + shardTag(shard) + ":" + voucherId;
+    }
+
+    private static String shardTag(int shard) {
+        return "{seckill:" + shard + "}";
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
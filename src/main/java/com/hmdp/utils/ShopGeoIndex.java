@@ -0,0 +1,405 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的店铺空间索引，可以代替redis GEO查询附近的店铺
+ * 1.每个店铺类型一个网格索引，按经纬度划分为SHOP_GEO_CELL_SIZE大小的网格，
+ *   店铺按网格排序后保存在基本类型数组中，查询时只遍历半径覆盖的网格
+ * 2.索引不可变，店铺新增、修改、删除时重新构建该类型的索引后整体替换(写时复制)，查询不需要加锁
+ * 3.店铺变化在事务提交后通过redis发布订阅通知所有节点，各节点从数据库重新读取该店铺更新索引
+ * 距离计算与redis GEO相同(haversine公式，相同的地球半径)
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+    //与redis GEO使用相同的地球半径(米)
+    private static final double EARTH_RADIUS = 6372797.560856;
+    //纬度每度对应的距离(米)
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+    //经度方向一圈的网格数，以及-180°所在的网格
+    private static final long CELLS_X = Math.round(360 / SystemConstants.SHOP_GEO_CELL_SIZE);
+    private static final long MIN_CELL_X = cell(-180);
+
+    @Resource
+    ShopMapper shopMapper;
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    //店铺类型 -> (店铺id -> 店铺坐标)
+    private final Map<Long, Map<Long, double[]>> points = new ConcurrentHashMap<>();
+    //店铺id -> 店铺类型，店铺修改类型时用于从旧类型中删除
+    private final Map<Long, Long> shopTypes = new ConcurrentHashMap<>();
+    //店铺类型 -> 网格索引
+    private final Map<Long, Grid> grids = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    /**
+     * 查询结果，按距离从近到远排序
+     */
+    public static final class Hits {
+        public final long[] ids;
+        public final double[] distances;
+
+        Hits(long[] ids, double[] distances) {
+            this.ids = ids;
+            this.distances = distances;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * 索引是否已经构建完成，未完成时调用方应使用redis GEO查询
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 全部店铺加入后构建所有类型的索引
+     */
+    public void markReady() {
+        points.keySet().forEach(this::rebuild);
+        ready = true;
+    }
+
+    /**
+     * 批量加入店铺，预热期间只记录坐标，在markReady时统一构建索引
+     */
+    public void addAll(Collection<Shop> shops) {
+        Set<Long> changed = new HashSet<>();
+        for (Shop shop : shops) {
+            changed.addAll(put(shop));
+        }
+        if (ready) {
+            changed.forEach(this::rebuild);
+        }
+    }
+
+    /**
+     * 新增或修改店铺
+     */
+    public void upsert(Shop shop) {
+        put(shop).forEach(this::rebuild);
+    }
+
+    /**
+     * 删除店铺
+     */
+    public void remove(Long shopId) {
+        Long typeId = shopTypes.remove(shopId);
+        if (typeId != null) {
+            points.getOrDefault(typeId, Map.of()).remove(shopId);
+            rebuild(typeId);
+        }
+    }
+
+    /**
+     * 查询半径内最近的limit个店铺
+     * @param typeId 店铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param radius 半径(米)
+     * @param limit 最多返回的店铺数
+     */
+    public Hits search(Long typeId, double x, double y, double radius, int limit) {
+        Grid grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return new Hits(new long[0], new double[0]);
+        }
+        return grid.search(x, y, radius, limit);
+    }
+
+    /**
+     * 查询最近的k个店铺，搜索半径从一个网格开始逐步扩大，直到找到k个店铺或达到最大半径
+     */
+    public Hits nearest(Long typeId, double x, double y, int k) {
+        double radius = SystemConstants.SHOP_GEO_CELL_SIZE * METERS_PER_DEGREE;
+        while (true) {
+            Hits hits = search(typeId, x, y, radius, k);
+            if (hits.size() >= k || radius >= SystemConstants.SHOP_GEO_MAX_RADIUS) {
+                return hits;
+            }
+            radius = Math.min(radius * 2, SystemConstants.SHOP_GEO_MAX_RADIUS);
+        }
+    }
+
+    /**
+     * 店铺变化后通知所有节点更新索引，有事务时在提交后通知
+     * @param shopId 店铺id
+     */
+    public void changed(Long shopId) {
+        if (!SystemConstants.SHOP_GEO_LOCAL_INDEX) {
+            return;
+        }
+        Runnable publish = () -> stringRedisTemplate.convertAndSend(
+                RedisConstants.SHOP_GEO_CHANGED_CHANNEL, shopId.toString());
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                publish.run();
+            }
+        });
+    }
+
+    /**
+     * 收到店铺变化的消息，从数据库重新读取店铺更新索引
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Long shopId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        Shop shop = shopMapper.selectById(shopId);
+        if (shop == null) {
+            remove(shopId);
+        } else {
+            upsert(shop);
+        }
+    }
+
+    /**
+     * 更新店铺坐标
+     * @return 需要重建索引的类型
+     */
+    private Set<Long> put(Shop shop) {
+        Set<Long> changed = new HashSet<>(2);
+        Long oldType = shop.getTypeId() == null ? shopTypes.remove(shop.getId()) : shopTypes.put(shop.getId(), shop.getTypeId());
+        if (oldType != null && !oldType.equals(shop.getTypeId())) {
+            points.getOrDefault(oldType, Map.of()).remove(shop.getId());
+            changed.add(oldType);
+        }
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return changed;
+        }
+        points.computeIfAbsent(shop.getTypeId(), k -> new ConcurrentHashMap<>())
+                .put(shop.getId(), new double[]{shop.getX(), shop.getY()});
+        changed.add(shop.getTypeId());
+        return changed;
+    }
+
+    private void rebuild(Long typeId) {
+        synchronized (grids) {
+            grids.put(typeId, Grid.build(new HashMap<>(points.getOrDefault(typeId, Map.of()))));
+        }
+    }
+
+    static long cellKey(long cx, long cy) {
+        return cx << 32 | (cy & 0xFFFFFFFFL);
+    }
+
+    static long cell(double degree) {
+        return (long) Math.floor(degree / SystemConstants.SHOP_GEO_CELL_SIZE);
+    }
+
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 一个类型的网格索引，店铺按网格排序，cellStart[i]到cellStart[i+1]是cellKeys[i]网格中的店铺
+     */
+    private static final class Grid {
+        private final long[] cellKeys;
+        private final int[] cellStart;
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+
+        private Grid(long[] cellKeys, int[] cellStart, long[] ids, double[] xs, double[] ys) {
+            this.cellKeys = cellKeys;
+            this.cellStart = cellStart;
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        static Grid build(Map<Long, double[]> points) {
+            int n = points.size();
+            long[] keys = new long[n];
+            long[] ids = new long[n];
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            Integer[] order = new Integer[n];
+            int i = 0;
+            for (Map.Entry<Long, double[]> e : points.entrySet()) {
+                double[] p = e.getValue();
+                keys[i] = cellKey(cell(p[0]), cell(p[1]));
+                ids[i] = e.getKey();
+                xs[i] = p[0];
+                ys[i] = p[1];
+                order[i] = i;
+                i++;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+            long[] sIds = new long[n];
+            double[] sXs = new double[n];
+            double[] sYs = new double[n];
+            long[] cellKeys = new long[n];
+            int[] cellStart = new int[n + 1];
+            int cells = 0;
+            for (int j = 0; j < n; j++) {
+                int k = order[j];
+                sIds[j] = ids[k];
+                sXs[j] = xs[k];
+                sYs[j] = ys[k];
+                if (cells == 0 || cellKeys[cells - 1] != keys[k]) {
+                    cellKeys[cells] = keys[k];
+                    cellStart[cells] = j;
+                    cells++;
+                }
+            }
+            cellStart[cells] = n;
+            return new Grid(Arrays.copyOf(cellKeys, cells), Arrays.copyOf(cellStart, cells + 1), sIds, sXs, sYs);
+        }
+
+        Hits search(double x, double y, double radius, int limit) {
+            //半径覆盖的纬度范围，不超过南北极
+            double dLat = radius / METERS_PER_DEGREE;
+            long cy0 = cell(Math.max(y - dLat, -90)), cy1 = cell(Math.min(y + dLat, 90));
+            //半径覆盖的经度范围，超过180°或覆盖极点时为整个纬度带，经度在±180°处首尾相接
+            long cx0, cx1;
+            double cos = Math.cos(Math.toRadians(y));
+            double dLon = cos <= 0 ? Double.POSITIVE_INFINITY : radius / (METERS_PER_DEGREE * cos);
+            if (dLon >= 180 || y - dLat <= -90 || y + dLat >= 90) {
+                cx0 = MIN_CELL_X;
+                cx1 = MIN_CELL_X + CELLS_X - 1;
+            } else {
+                cx0 = cell(x - dLon);
+                cx1 = cell(x + dLon);
+            }
+            long width = cx1 - cx0;
+            TopK top = new TopK(limit);
+            if ((width + 1) * (cy1 - cy0 + 1) > cellKeys.length) {
+                //覆盖的网格比有店铺的网格多时，直接遍历有店铺的网格
+                for (int c = 0; c < cellKeys.length; c++) {
+                    long cx = cellKeys[c] >> 32;
+                    long cy = (int) cellKeys[c];
+                    if (cy >= cy0 && cy <= cy1 && Math.floorMod(cx - cx0, CELLS_X) <= width) {
+                        scan(c, x, y, radius, top);
+                    }
+                }
+                return top.toHits();
+            }
+            for (long cx = cx0; cx <= cx1; cx++) {
+                //超过±180°的网格换算回[-180°, 180°)
+                long wrapped = MIN_CELL_X + Math.floorMod(cx - MIN_CELL_X, CELLS_X);
+                for (long cy = cy0; cy <= cy1; cy++) {
+                    int c = Arrays.binarySearch(cellKeys, cellKey(wrapped, cy));
+                    if (c >= 0) {
+                        scan(c, x, y, radius, top);
+                    }
+                }
+            }
+            return top.toHits();
+        }
+
+        private void scan(int c, double x, double y, double radius, TopK top) {
+            for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                double d = distance(x, y, xs[i], ys[i]);
+                if (d <= radius) {
+                    top.offer(ids[i], d);
+                }
+            }
+        }
+    }
+
+    /**
+     * 保留距离最小的k个店铺的大顶堆
+     */
+    private static final class TopK {
+        private final long[] ids;
+        private final double[] distances;
+        private int size;
+
+        TopK(int k) {
+            ids = new long[k];
+            distances = new double[k];
+        }
+
+        void offer(long id, double d) {
+            if (size < ids.length) {
+                ids[size] = id;
+                distances[size] = d;
+                siftUp(size++);
+            } else if (d < distances[0]) {
+                ids[0] = id;
+                distances[0] = d;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * 依次取出堆顶，得到从近到远的结果
+         */
+        Hits toHits() {
+            int n = size;
+            long[] rIds = new long[n];
+            double[] rDistances = new double[n];
+            for (int i = n - 1; i >= 0; i--) {
+                rIds[i] = ids[0];
+                rDistances[i] = distances[0];
+                size--;
+                swap(0, size);
+                siftDown(0);
+            }
+            return new Hits(rIds, rDistances);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] >= distances[i]) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1, r = l + 1, max = i;
+                if (l < size && distances[l] > distances[max]) max = l;
+                if (r < size && distances[r] > distances[max]) max = r;
+                if (max == i) return;
+                swap(i, max);
+                i = max;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            double d = distances[a];
+            distances[a] = distances[b];
+            distances[b] = d;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.baomidou.mybatisplus.core.toolkit.support.SFunction;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.ShopTypeMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 店铺多维度排序
+ * 1.每个店铺类型、每个排序维度维护一个有序集合shop:rank:{维度}:{类型}，分值为店铺的评分、销量、均价、评论数
+ * 2.不限位置时直接按排名分页读取有序集合
+ * 3.限定位置时先取半径内的店铺，再通过一次ZMSCORE读取分值，用大小为k的堆选出前k个
+ * 店铺新增、修改、删除在事务提交后从数据库重新读取店铺更新有序集合，某个维度的字段为空的店铺不参与该维度的排名
+ * 启动预热时全量重建，先写入临时key再整体替换，已删除的店铺不会残留在排名中
+ */
+@Slf4j
+@Component
+public class ShopRanking {
+    /**
+     * 排序维度
+     */
+    public enum SortBy {
+        DISTANCE("distance", false, null, null),
+        SCORE("score", true, Shop::getScore, Shop::getScore),
+        SOLD("sold", true, Shop::getSold, Shop::getSold),
+        PRICE("price", false, Shop::getAvgPrice, Shop::getAvgPrice),
+        COMMENTS("comments", true, Shop::getComments, Shop::getComments);
+
+        private final String name;
+        //是否按分值从大到小排序
+        private final boolean desc;
+        private final Function<Shop, Number> field;
+        private final SFunction<Shop, ?> column;
+
+        SortBy(String name, boolean desc, Function<Shop, Number> field, SFunction<Shop, ?> column) {
+            this.name = name;
+            this.desc = desc;
+            this.field = field;
+            this.column = column;
+        }
+
+        public boolean isDesc() {
+            return desc;
+        }
+
+        public SFunction<Shop, ?> getColumn() {
+            return column;
+        }
+
+        /**
+         * 根据请求参数获取排序维度，为空时按距离排序，不支持的维度返回null
+         */
+        public static SortBy of(String name) {
+            if (name == null || name.isEmpty()) return DISTANCE;
+            for (SortBy sortBy : values()) {
+                if (sortBy.name.equalsIgnoreCase(name)) return sortBy;
+            }
+            return null;
+        }
+    }
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    ShopMapper shopMapper;
+    @Resource
+    ShopTypeMapper shopTypeMapper;
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    //正在进行的全量重建，重建期间店铺变化同时写入临时key，避免替换后丢失
+    private volatile Rebuild rebuilding;
+
+    /**
+     * 通过一次pipeline把店铺写入各个维度的有序集合
+     */
+    public void addAll(Collection<Shop> shops) {
+        write(RedisConstants.SHOP_RANK_KEY, shops, null);
+    }
+
+    /**
+     * 开始全量重建，店铺先写入临时key，全部写入后再替换正式的有序集合，已删除的店铺不会残留
+     */
+    public Rebuild rebuild() {
+        Rebuild rebuild = new Rebuild();
+        rebuilding = rebuild;
+        return rebuild;
+    }
+
+    /**
+     * 全量重建
+     */
+    public final class Rebuild {
+        //临时key的前缀shop:rank:tmp:{随机串}:，避免多个节点同时预热时互相覆盖
+        private final String prefix = RedisConstants.SHOP_RANK_KEY + "tmp:" + UUID.randomUUID().toString(true) + ":";
+        //写入过的店铺类型
+        private final Set<Long> typeIds = ConcurrentHashMap.newKeySet();
+
+        private Rebuild() {
+        }
+
+        public void addAll(Collection<Shop> shops) {
+            write(prefix, shops, this);
+        }
+
+        /**
+         * 用临时key替换各类型的正式有序集合，没有店铺的类型删除正式有序集合
+         */
+        public void finish() {
+            Set<Long> allTypeIds = new HashSet<>(typeIds);
+            shopTypeMapper.selectList(null).forEach(type -> allTypeIds.add(type.getId()));
+            List<String> keys = new ArrayList<>();
+            List<String> stale = new ArrayList<>();
+            for (Long typeId : allTypeIds) {
+                for (SortBy sortBy : SortBy.values()) {
+                    if (sortBy.field == null) continue;
+                    if (typeIds.contains(typeId)) {
+                        keys.add(key(prefix, sortBy, typeId));
+                        keys.add(key(sortBy, typeId));
+                    } else {
+                        stale.add(key(sortBy, typeId));
+                    }
+                }
+            }
+            String pairs = String.valueOf(keys.size() / 2);
+            keys.addAll(stale);
+            scriptRegistry.execute(RedisScriptRegistry.SHOP_RANK_SWAP, keys, pairs);
+            if (rebuilding == this) {
+                rebuilding = null;
+            }
+        }
+    }
+
+    /**
+     * 写入店铺的各个维度，字段为空的店铺不参与该维度的排名
+     * @param rebuild 全量重建时记录写入的类型，否则为空
+     */
+    private void write(String prefix, Collection<Shop> shops, Rebuild rebuild) {
+        if (shops.isEmpty()) return;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Shop shop : shops) {
+                if (shop.getTypeId() == null) continue;
+                if (rebuild != null) rebuild.typeIds.add(shop.getTypeId());
+                for (SortBy sortBy : SortBy.values()) {
+                    if (sortBy.field == null) continue;
+                    String key = key(prefix, sortBy, shop.getTypeId());
+                    Number value = sortBy.field.apply(shop);
+                    if (value == null) {
+                        conn.zRem(key, shop.getId().toString());
+                    } else {
+                        conn.zAdd(key, value.doubleValue(), shop.getId().toString());
+                    }
+                    if (rebuild != null) {
+                        conn.expire(key, RedisConstants.SHOP_RANK_REBUILD_TTL);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 店铺变化后更新排名，有事务时在提交后更新
+     * @param shopId 店铺id
+     * @param oldTypeId 修改前的类型，类型变化或删除时从旧类型的排名中移除，未知时为空
+     */
+    public void changed(Long shopId, Long oldTypeId) {
+        Runnable refresh = () -> refresh(shopId, oldTypeId);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            refresh.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                refresh.run();
+            }
+        });
+    }
+
+    /**
+     * 按排名分页查询店铺id
+     * @param begin 起始排名(包含)
+     * @param end 结束排名(不包含)
+     * @return 店铺id，有序集合不存在时返回null
+     */
+    public List<Long> page(Long typeId, SortBy sortBy, int begin, int end) {
+        String key = key(sortBy, typeId);
+        Set<String> ids = sortBy.desc
+                ? stringRedisTemplate.opsForZSet().reverseRange(key, begin, end - 1)
+                : stringRedisTemplate.opsForZSet().range(key, begin, end - 1);
+        if ((ids == null || ids.isEmpty()) && !Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return null;
+        }
+        return ids == null ? Collections.emptyList() : ids.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * 在候选店铺中选出排名前k的店铺，分值相同时距离近的在前
+     * @param candidates 店铺id -> 距离(米)
+     * @return 排好序的店铺id
+     */
+    public List<Long> topK(Long typeId, SortBy sortBy, Map<Long, Double> candidates, int k) {
+        if (candidates.isEmpty() || k <= 0) return Collections.emptyList();
+        List<Long> ids = new ArrayList<>(candidates.keySet());
+        List<Double> scores = stringRedisTemplate.opsForZSet()
+                .score(key(sortBy, typeId), ids.stream().map(String::valueOf).toArray());
+        //排名靠前的比较结果小，没有分值的店铺排在最后
+        double missing = sortBy.desc ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        Comparator<Ranked> order = Comparator.comparingDouble((Ranked r) -> sortBy.desc ? -r.score : r.score)
+                .thenComparingDouble(r -> r.distance);
+        //堆顶是当前前k个中排名最靠后的
+        PriorityQueue<Ranked> heap = new PriorityQueue<>(k, order.reversed());
+        for (int i = 0; i < ids.size(); i++) {
+            Double score = scores == null ? null : scores.get(i);
+            Ranked r = new Ranked(ids.get(i), score == null ? missing : score, candidates.get(ids.get(i)));
+            if (heap.size() < k) {
+                heap.offer(r);
+            } else if (order.compare(r, heap.peek()) < 0) {
+                heap.poll();
+                heap.offer(r);
+            }
+        }
+        List<Ranked> top = new ArrayList<>(heap);
+        top.sort(order);
+        return top.stream().map(r -> r.id).collect(Collectors.toList());
+    }
+
+    private void refresh(Long shopId, Long oldTypeId) {
+        Shop shop = shopMapper.selectById(shopId);
+        Rebuild rebuild = rebuilding;
+        if (oldTypeId != null && (shop == null || !oldTypeId.equals(shop.getTypeId()))) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (SortBy sortBy : SortBy.values()) {
+                    if (sortBy.field == null) continue;
+                    conn.zRem(key(sortBy, oldTypeId), shopId.toString());
+                    if (rebuild != null) conn.zRem(key(rebuild.prefix, sortBy, oldTypeId), shopId.toString());
+                }
+                return null;
+            });
+        }
+        if (shop != null) {
+            addAll(Collections.singletonList(shop));
+            if (rebuild != null) rebuild.addAll(Collections.singletonList(shop));
+        }
+    }
+
+    private static String key(SortBy sortBy, Long typeId) {
+        return key(RedisConstants.SHOP_RANK_KEY, sortBy, typeId);
+    }
+
+    private static String key(String prefix, SortBy sortBy, Long typeId) {
+        return prefix + sortBy.name + ":" + typeId;
+    }
+
+    private static final class Ranked {
+        private final long id;
+        private final double score;
+        private final double distance;
+
+        Ranked(long id, double score, Double distance) {
+            this.id = id;
+            this.score = score;
+            this.distance = distance == null ? 0 : distance;
+        }
+    }
+}
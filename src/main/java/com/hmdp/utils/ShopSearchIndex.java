@@ -0,0 +1,282 @@
+package com.hmdp.utils;
+
+import cn.hutool.extra.pinyin.PinyinUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+/**
+ * 进程内的店铺名称倒排索引，代替LIKE '%name%'的全表扫描
+ * 1.店铺名称按单字和相邻两字(n-gram)建立倒排表，查询时求交集后再校验名称包含关键字，只忽略大小写，结果与LIKE一致
+ * 2.店铺名称转为拼音，从每个字开始的全拼和首字母后缀保存在有序map中，字母和数字组成的关键字额外按拼音前缀匹配，
+ *   例如"海底捞火锅"可以通过haidi、huoguo、hdl、hg搜索到，这部分是LIKE查不到的额外结果
+ * 3.匹配的店铺按评分从高到低取前k个
+ * 店铺变化在事务提交后通过redis发布订阅通知所有节点，各节点从数据库重新读取该店铺更新索引
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex implements MessageListener {
+    @Resource
+    ShopMapper shopMapper;
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    //店铺id -> 索引中的店铺
+    private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+    //名称的单字、两字 -> 店铺id
+    private final Map<String, Set<Long>> grams = new ConcurrentHashMap<>();
+    //拼音全拼和首字母的后缀 -> 店铺id
+    private final ConcurrentSkipListMap<String, Set<Long>> pinyins = new ConcurrentSkipListMap<>();
+    private volatile boolean ready;
+
+    private static final class Doc {
+        private final long id;
+        //原始名称，用于自动补全的展示
+        private final String title;
+        //统一为小写后的名称
+        private final String name;
+        private final int score;
+        private final Set<String> grams;
+        private final Set<String> pinyins;
+
+        Doc(long id, String title, int score) {
+            this.id = id;
+            this.title = title;
+            this.name = normalize(title);
+            this.score = score;
+            this.grams = grams(name);
+            this.pinyins = pinyins(name);
+        }
+    }
+
+    /**
+     * 索引是否已经构建完成，未完成时调用方应查询数据库
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markReady() {
+        ready = true;
+    }
+
+    public void addAll(Collection<Shop> shops) {
+        shops.forEach(this::upsert);
+    }
+
+    /**
+     * 新增或修改店铺，先删除旧名称的索引再加入新名称
+     */
+    public synchronized void upsert(Shop shop) {
+        if (shop.getName() == null) return;
+        remove(shop.getId());
+        Doc doc = new Doc(shop.getId(), shop.getName(), shop.getScore() == null ? 0 : shop.getScore());
+        doc.grams.forEach(g -> grams.computeIfAbsent(g, k -> ConcurrentHashMap.newKeySet()).add(doc.id));
+        doc.pinyins.forEach(p -> pinyins.computeIfAbsent(p, k -> ConcurrentHashMap.newKeySet()).add(doc.id));
+        docs.put(doc.id, doc);
+    }
+
+    public synchronized void remove(Long shopId) {
+        Doc doc = docs.remove(shopId);
+        if (doc == null) return;
+        doc.grams.forEach(g -> unlink(grams, g, shopId));
+        doc.pinyins.forEach(p -> unlink(pinyins, p, shopId));
+    }
+
+    /**
+     * 搜索名称包含关键字的店铺，字母和数字组成的关键字还包括拼音以关键字开头的店铺
+     * @param keyword 关键字
+     * @param offset 跳过的店铺数
+     * @param limit 返回的店铺数
+     * @return 按评分从高到低排序的店铺id
+     */
+    public List<Long> search(String keyword, int offset, int limit) {
+        return topK(match(normalize(keyword)), offset, limit).stream()
+                .map(doc -> doc.id).collect(Collectors.toList());
+    }
+
+    /**
+     * 搜索框自动补全，返回评分最高的几个匹配店铺的名称
+     * @param prefix 已输入的内容
+     * @param limit 返回的名称数
+     */
+    public List<String> suggest(String prefix, int limit) {
+        String q = normalize(prefix);
+        Set<Long> ids = match(q);
+        //名称以输入内容开头的店铺排在前面
+        Set<Long> starts = new HashSet<>();
+        for (Long id : ids) {
+            Doc doc = docs.get(id);
+            if (doc != null && doc.name.startsWith(q)) starts.add(id);
+        }
+        Set<String> names = new LinkedHashSet<>();
+        topK(starts, 0, limit).forEach(doc -> names.add(doc.title));
+        ids.removeAll(starts);
+        topK(ids, 0, limit).forEach(doc -> names.add(doc.title));
+        return names.stream().limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * 店铺变化后通知所有节点更新索引，有事务时在提交后通知
+     * @param shopId 店铺id
+     */
+    public void changed(Long shopId) {
+        Runnable publish = () -> stringRedisTemplate.convertAndSend(
+                RedisConstants.SHOP_SEARCH_CHANGED_CHANNEL, shopId.toString());
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                publish.run();
+            }
+        });
+    }
+
+    /**
+     * 收到店铺变化的消息，从数据库重新读取店铺更新索引
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Long shopId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        Shop shop = shopMapper.selectById(shopId);
+        if (shop == null) {
+            remove(shopId);
+        } else {
+            upsert(shop);
+        }
+    }
+
+    /**
+     * 查询匹配关键字的店铺id
+     */
+    private Set<Long> match(String q) {
+        Set<Long> result = new HashSet<>();
+        if (q.isEmpty()) return result;
+        //1.名称包含关键字：单字直接取倒排表，多字取所有两字倒排表的交集后校验
+        if (q.length() == 1) {
+            result.addAll(grams.getOrDefault(q, Collections.emptySet()));
+        } else {
+            List<Set<Long>> postings = new ArrayList<>(q.length() - 1);
+            for (int i = 0; i + 2 <= q.length(); i++) {
+                Set<Long> posting = grams.get(q.substring(i, i + 2));
+                if (posting == null) {
+                    postings.clear();
+                    break;
+                }
+                postings.add(posting);
+            }
+            if (!postings.isEmpty()) {
+                postings.sort(Comparator.comparingInt(Set::size));
+                for (Long id : postings.get(0)) {
+                    Doc doc = docs.get(id);
+                    if (doc != null && doc.name.contains(q)) result.add(id);
+                }
+            }
+        }
+        //2.字母和数字组成的关键字按拼音前缀匹配
+        if (q.chars().allMatch(c -> c < 128 && Character.isLetterOrDigit(c))) {
+            pinyins.subMap(q, true, q + Character.MAX_VALUE, false).values().forEach(result::addAll);
+        }
+        return result;
+    }
+
+    /**
+     * 用大小为offset+limit的小顶堆选出评分最高的店铺，评分相同时id小的在前
+     */
+    private List<Doc> topK(Set<Long> ids, int offset, int limit) {
+        int k = offset + limit;
+        if (ids.isEmpty() || limit <= 0) return Collections.emptyList();
+        Comparator<Doc> order = Comparator.comparingInt((Doc d) -> -d.score).thenComparingLong(d -> d.id);
+        PriorityQueue<Doc> heap = new PriorityQueue<>(Math.min(k, ids.size()), order.reversed());
+        for (Long id : ids) {
+            Doc doc = docs.get(id);
+            if (doc == null) continue;
+            if (heap.size() < k) {
+                heap.offer(doc);
+            } else if (order.compare(doc, heap.peek()) < 0) {
+                heap.poll();
+                heap.offer(doc);
+            }
+        }
+        List<Doc> top = new ArrayList<>(heap);
+        top.sort(order);
+        return offset >= top.size() ? Collections.emptyList() : top.subList(offset, top.size());
+    }
+
+    private static void unlink(Map<String, Set<Long>> index, String token, Long shopId) {
+        Set<Long> posting = index.get(token);
+        if (posting == null) return;
+        posting.remove(shopId);
+        if (posting.isEmpty()) index.remove(token);
+    }
+
+    /**
+     * 统一转为小写，空白字符保留，与LIKE的匹配方式一致
+     */
+    static String normalize(String s) {
+        return s == null ? "" : s.toLowerCase();
+    }
+
+    /**
+     * 名称的所有单字和相邻两字
+     */
+    static Set<String> grams(String name) {
+        Set<String> result = new HashSet<>(name.length() * 2);
+        for (int i = 0; i < name.length(); i++) {
+            result.add(name.substring(i, i + 1));
+            if (i + 2 <= name.length()) result.add(name.substring(i, i + 2));
+        }
+        return result;
+    }
+
+    /**
+     * 从名称每个字开始的全拼和首字母后缀，汉字转为拼音，字母和数字保留，空白等其他字符忽略
+     */
+    static Set<String> pinyins(String name) {
+        List<String> syllables = new ArrayList<>(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (PinyinUtil.isChinese(c)) {
+                syllables.add(PinyinUtil.getPinyin(c));
+            } else if (c < 128 && Character.isLetterOrDigit(c)) {
+                syllables.add(String.valueOf(c));
+            }
+        }
+        Set<String> result = new HashSet<>(syllables.size() * 2);
+        StringBuilder full = new StringBuilder();
+        StringBuilder initials = new StringBuilder();
+        for (int i = syllables.size() - 1; i >= 0; i--) {
+            String syllable = syllables.get(i);
+            full.insert(0, syllable);
+            initials.insert(0, syllable.charAt(0));
+            result.add(full.toString());
+            result.add(initials.toString());
+        }
+        return result;
+    }
+}
@@ -4,6 +4,7 @@ import cn.hutool.core.lang.UUID;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -15,9 +16,11 @@ public class SimpleRedisLock implements ILock {
     //标识业务名称
     private String name ;
     private StringRedisTemplate stringRedisTemplate;
+    private RedisScriptRegistry scriptRegistry;
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
-    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate,String name) {
+    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry, String name) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
         this.name = name ;
     }
 
@@ -37,17 +40,24 @@ public class SimpleRedisLock implements ILock {
     }
 
     /**
-     * 释放锁
+     * 为当前线程持有的锁续期
+     * @param timeoutSec 新的超时时间
+     * @return 锁是否仍由当前线程持有
+     */
+    public boolean renew(Long timeoutSec) {
+        Long res = scriptRegistry.execute(RedisScriptRegistry.LOCK_RENEW,
+                Collections.singletonList(KEY_PREFIX + name),
+                ID_PREFIX + Thread.currentThread().getId(), String.valueOf(TimeUnit.SECONDS.toMillis(timeoutSec)));
+        return res != null && res == 1L;
+    }
+
+    /**
+     * 释放锁，比较线程标识和删除锁在一个脚本中执行，保证原子性
      */
     @Override
     public void unlock() {
-        //锁的key
-        String key = KEY_PREFIX + name;
-        //线程标识
-        String ThreadId = stringRedisTemplate.opsForValue().get(key);
-        //比较当前线程标识是否和存入redis中的线程标识相同，相同则释放锁
-        if(ThreadId .equals(ID_PREFIX + Thread.currentThread().getId())){
-            stringRedisTemplate.delete(key);
-        }
+        scriptRegistry.execute(RedisScriptRegistry.UNLOCK,
+                Collections.singletonList(KEY_PREFIX + name),
+                ID_PREFIX + Thread.currentThread().getId());
     }
 }
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法ID生成器，不依赖redis
+ * ID组成：符号位0 | 标记位1 | 41位毫秒时间戳 | 10位机器id | 11位序列号
+ * 标记位保证雪花ID总是大于号段模式生成的ID，两种模式切换后ID仍然递增且不会重复
+ * 时间戳和序列号保存在一个AtomicLong中，通过CAS无锁更新：
+ * 同一毫秒内序列号递增，序列号用完或时钟回拨时沿用上一次的时间继续递增(借用未来的时间)，保证ID单调递增
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+    // 2022.1.1的毫秒时间戳，与号段模式的起始时间相同
+    private static final long BEGIN_MILLIS = 1640995200000L;
+    private static final int SEQUENCE_BITS = 11;
+    private static final int WORKER_BITS = 10;
+    public static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MARK = 1L << 62;
+
+    //上一次发放的 时间戳 << SEQUENCE_BITS | 序列号
+    private final AtomicLong last = new AtomicLong();
+    private volatile long workerId;
+
+    public SnowflakeIdGenerator(long workerId) {
+        setWorkerId(workerId);
+    }
+
+    /**
+     * 机器id的租约失效后重新租到新的机器id时更新
+     */
+    public void setWorkerId(long workerId) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("机器id超出范围：" + workerId);
+        }
+        this.workerId = workerId;
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        while (true) {
+            long prev = last.get();
+            long now = System.currentTimeMillis() - BEGIN_MILLIS;
+            //时钟前进则从新的毫秒开始，否则(同一毫秒或时钟回拨)序列号加一，溢出时进位到时间戳
+            long next = now > (prev >>> SEQUENCE_BITS) ? now << SEQUENCE_BITS : prev + 1;
+            if (last.compareAndSet(prev, next)) {
+                long timestamp = next >>> SEQUENCE_BITS;
+                long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+                return MARK | timestamp << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+}
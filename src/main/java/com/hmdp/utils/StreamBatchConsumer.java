@@ -0,0 +1,318 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream消息队列的批量消费者
+ * 1.同一个消费者组内启动多个消费者线程，每个消费者使用不同的名称，互不重复读取消息
+ * 2.每次XREADGROUP最多读取batchSize条消息，整批交给处理器处理，处理成功后一次XACK确认整批消息
+ * 3.处理失败的消息留在pending-list中，由恢复任务处理：
+ *   定时XPENDING查看整个消费者组的pending-list，把空闲超过minIdle的消息(包括已宕机节点的消息)XCLAIM到本节点重新处理，
+ *   投递次数达到maxDeliveries的消息转移到死信队列，不再重试
+ */
+@Slf4j
+public class StreamBatchConsumer {
+    //恢复任务的执行间隔
+    private static final long RECOVERY_INTERVAL_SECONDS = 5;
+    //空闲超过该时间且没有pending消息的其他消费者会被删除
+    private static final Duration DEAD_CONSUMER_IDLE = Duration.ofHours(1);
+
+    /**
+     * 批量处理消息的处理器，抛出异常表示整批处理失败
+     */
+    @FunctionalInterface
+    public interface BatchHandler {
+        void handle(List<MapRecord<String, Object, Object>> records);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String stream;
+    private final String group;
+    private final String consumerPrefix;
+    private final int consumerCount;
+    private final int batchSize;
+    private final BatchHandler handler;
+    private final ExecutorService executor;
+    private volatile boolean running;
+
+    //死信队列、重新投递前的最短空闲时间和最大投递次数，死信队列为空时不启动恢复任务
+    private String deadLetterStream;
+    private Duration minIdle;
+    private int maxDeliveries;
+    private ScheduledExecutorService recoveryExecutor;
+
+    private final Counter ackedCounter;
+    private final Counter failureCounter;
+    private final Counter claimedCounter;
+    private final Counter deadLetterCounter;
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong lag = new AtomicLong(-1);
+
+    /**
+     * @param stream 消息队列的key
+     * @param group 消费者组
+     * @param consumerPrefix 消费者名称前缀，不同节点应使用不同的前缀
+     * @param consumerCount 消费者线程数
+     * @param batchSize 每次读取的最大消息数
+     * @param handler 批量处理消息的处理器
+     */
+    public StreamBatchConsumer(StringRedisTemplate stringRedisTemplate, MeterRegistry registry,
+                               String stream, String group, String consumerPrefix,
+                               int consumerCount, int batchSize, BatchHandler handler) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stream = stream;
+        this.group = group;
+        this.consumerPrefix = consumerPrefix;
+        this.consumerCount = consumerCount;
+        this.batchSize = batchSize;
+        this.handler = handler;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(consumerCount,
+                r -> new Thread(r, stream + "-consumer-" + threadIndex.incrementAndGet()));
+
+        this.ackedCounter = Counter.builder("stream.acked").tag("stream", stream)
+                .description("处理成功并确认的消息数").register(registry);
+        this.failureCounter = Counter.builder("stream.failures").tag("stream", stream)
+                .description("处理失败的消息数").register(registry);
+        this.claimedCounter = Counter.builder("stream.claimed").tag("stream", stream)
+                .description("从pending-list中认领重新处理的消息数").register(registry);
+        this.deadLetterCounter = Counter.builder("stream.dead.letter").tag("stream", stream)
+                .description("转移到死信队列的消息数").register(registry);
+        Gauge.builder("stream.pending", pendingCount, AtomicLong::get).tag("stream", stream)
+                .description("消费者组中已读取但未确认的消息数").register(registry);
+        Gauge.builder("stream.lag", lag, AtomicLong::get).tag("stream", stream)
+                .description("还未投递给消费者组的消息数，Redis7以下为-1").register(registry);
+    }
+
+    /**
+     * 开启pending消息的恢复任务
+     * @param deadLetterStream 死信队列的key
+     * @param minIdle 消息空闲超过该时间才会被重新投递
+     * @param maxDeliveries 最大投递次数，达到后转移到死信队列
+     */
+    public StreamBatchConsumer enableRecovery(String deadLetterStream, Duration minIdle, int maxDeliveries) {
+        this.deadLetterStream = deadLetterStream;
+        this.minIdle = minIdle;
+        this.maxDeliveries = maxDeliveries;
+        return this;
+    }
+
+    /**
+     * 创建消费者组(队列不存在时一并创建)并启动所有消费者
+     */
+    public void start() {
+        createGroupIfAbsent();
+        running = true;
+        for (int i = 0; i < consumerCount; i++) {
+            String name = consumerPrefix + "-" + i;
+            executor.submit(() -> consume(name));
+        }
+        if (deadLetterStream != null) {
+            recoveryExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, stream + "-recovery"));
+            recoveryExecutor.scheduleWithFixedDelay(this::recover,
+                    RECOVERY_INTERVAL_SECONDS, RECOVERY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 停止读取新消息，等待正在处理的批次完成
+     */
+    public void stop() {
+        running = false;
+        if (recoveryExecutor != null) {
+            recoveryExecutor.shutdown();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), group);
+        } catch (RedisSystemException e) {
+            //BUSYGROUP 消费者组已存在
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void consume(String name) {
+        Consumer consumer = Consumer.from(group, name);
+        while (running) {
+            try {
+                // XREADGROUP GROUP g1 c COUNT n BLOCK 2000 STREAMS stream.orders >
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(consumer,
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                        StreamOffset.create(stream, ReadOffset.lastConsumed()));
+                if (records == null || records.isEmpty()) {
+                    continue;
+                }
+                handler.handle(records);
+                acknowledge(records);
+            } catch (Exception e) {
+                //处理失败的消息仍在pending-list中，空闲超过minIdle后由恢复任务重新投递
+                failureCounter.increment();
+                log.error("处理消息异常，stream:{}，consumer:{}", stream, name, e);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 恢复任务：认领空闲超时的pending消息重新处理，投递次数过多的转移到死信队列，并更新积压指标
+     * Spring Data Redis不支持XAUTOCLAIM，使用XPENDING查出空闲消息后再XCLAIM，
+     * XCLAIM带有min-idle条件，多个节点同时认领同一条消息时只有一个会成功
+     */
+    private void recover() {
+        try {
+            StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+            PendingMessages pending = ops.pending(stream, group, Range.unbounded(), batchSize);
+            List<RecordId> retryIds = new ArrayList<>();
+            Map<RecordId, Long> deadIds = new HashMap<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    deadIds.put(message.getId(), message.getTotalDeliveryCount());
+                } else {
+                    retryIds.add(message.getId());
+                }
+            }
+            String owner = consumerPrefix + "-recovery";
+            if (!deadIds.isEmpty()) {
+                deadLetter(ops, owner, deadIds);
+            }
+            if (!retryIds.isEmpty()) {
+                retry(ops, owner, retryIds);
+            }
+            removeDeadConsumers(ops);
+            updateMetrics(ops);
+        } catch (Exception e) {
+            log.error("恢复pending消息异常，stream:{}", stream, e);
+        }
+    }
+
+    /**
+     * 重新处理认领到的消息，整批失败时逐条处理，找出有问题的消息
+     */
+    private void retry(StreamOperations<String, Object, Object> ops, String owner, List<RecordId> ids) {
+        List<MapRecord<String, Object, Object>> records =
+                ops.claim(stream, group, owner, minIdle, ids.toArray(new RecordId[0]));
+        if (records.isEmpty()) {
+            return;
+        }
+        claimedCounter.increment(records.size());
+        try {
+            handler.handle(records);
+            acknowledge(records);
+            return;
+        } catch (Exception e) {
+            log.warn("重新处理消息失败，逐条重试，stream:{}，count:{}", stream, records.size(), e);
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                handler.handle(Collections.singletonList(record));
+                acknowledge(Collections.singletonList(record));
+            } catch (Exception e) {
+                failureCounter.increment();
+                log.error("重新处理消息失败，stream:{}，id:{}", stream, record.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * 把消息复制到死信队列，并从原消费者组中确认
+     */
+    private void deadLetter(StreamOperations<String, Object, Object> ops, String owner, Map<RecordId, Long> deliveries) {
+        List<MapRecord<String, Object, Object>> records =
+                ops.claim(stream, group, owner, minIdle, deliveries.keySet().toArray(new RecordId[0]));
+        Set<RecordId> claimed = new HashSet<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("sourceId", record.getId().getValue());
+            value.put("deliveries", String.valueOf(deliveries.get(record.getId())));
+            ops.add(deadLetterStream, value);
+            claimed.add(record.getId());
+            log.error("消息投递{}次仍处理失败，转移到死信队列，stream:{}，id:{}，value:{}",
+                    deliveries.get(record.getId()), stream, record.getId(), record.getValue());
+        }
+        if (!claimed.isEmpty()) {
+            ops.acknowledge(stream, group, claimed.toArray(new RecordId[0]));
+            deadLetterCounter.increment(claimed.size());
+        }
+    }
+
+    /**
+     * 删除长时间空闲且没有pending消息的其他消费者，消费者名称包含进程号，节点重启后旧名称不会再使用
+     */
+    private void removeDeadConsumers(StreamOperations<String, Object, Object> ops) {
+        for (StreamInfo.XInfoConsumer consumer : ops.consumers(stream, group).stream().toList()) {
+            if (consumer.consumerName().startsWith(consumerPrefix + "-")) {
+                continue;
+            }
+            if (consumer.pendingCount() == 0 && consumer.idleTime().compareTo(DEAD_CONSUMER_IDLE) > 0) {
+                ops.deleteConsumer(stream, Consumer.from(group, consumer.consumerName()));
+                log.info("删除已失效的消费者，stream:{}，consumer:{}", stream, consumer.consumerName());
+            }
+        }
+    }
+
+    private void updateMetrics(StreamOperations<String, Object, Object> ops) {
+        pendingCount.set(ops.pending(stream, group).getTotalPendingMessages());
+        for (StreamInfo.XInfoGroup info : ops.groups(stream).stream().toList()) {
+            if (group.equals(info.groupName())) {
+                //XINFO GROUPS从Redis7开始返回lag
+                Object value = info.getRaw().get("lag");
+                lag.set(value instanceof Number ? ((Number) value).longValue() : -1);
+            }
+        }
+    }
+
+    private void acknowledge(List<MapRecord<String, Object, Object>> records) {
+        RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(stream, group, ids);
+        ackedCounter.increment(ids.length);
+    }
+}
@@ -5,4 +5,30 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    //缓存预热时每次从数据库读取的店铺数量
+    public static final int WARM_UP_BATCH_SIZE = 500;
+    //缓存重建线程池的线程数和队列容量
+    public static final int CACHE_REBUILD_POOL_SIZE = 10;
+    public static final int CACHE_REBUILD_QUEUE_CAPACITY = 1000;
+    //每个节点处理秒杀订单的消费者数量和每次读取的最大订单数
+    public static final int ORDER_CONSUMER_COUNT = 4;
+    public static final int ORDER_BATCH_SIZE = 100;
+    //未确认的订单空闲超过该时间(毫秒)后被重新投递，投递达到该次数后转移到死信队列
+    public static final long ORDER_PENDING_MIN_IDLE = 30000;
+    public static final int ORDER_MAX_DELIVERIES = 3;
+    //ID号段的长度，号段使用超过该比例后预取下一个号段
+    public static final long ID_SEGMENT_STEP = 1000;
+    public static final double ID_SEGMENT_PREFETCH_RATIO = 0.1;
+    //是否使用雪花算法生成ID，开启后生成ID不再访问redis
+    public static final boolean ID_SNOWFLAKE_MODE = false;
+    //附近商铺的默认、最大查询半径(米)
+    public static final double SHOP_GEO_RADIUS = 5000;
+    public static final double SHOP_GEO_MAX_RADIUS = 50000;
+    //附近商铺结果缓存的最大店铺数，以及划分位置网格的大小(经纬度，约1公里)
+    public static final int SHOP_GEO_RESULT_LIMIT = 1000;
+    public static final double SHOP_GEO_CELL_SIZE = 0.01;
+    //是否在进程内维护店铺空间索引，开启后附近商铺的分页查询不再访问redis GEO
+    public static final boolean SHOP_GEO_LOCAL_INDEX = false;
+    //店铺名称自动补全返回的名称数
+    public static final int SHOP_SUGGEST_SIZE = 10;
 }
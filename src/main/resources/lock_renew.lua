@@ -0,0 +1,10 @@
+-- 获取锁或续期：锁不存在时获取锁，已经是自己持有的锁则重新设置过期时间
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识  ARGV[2] 过期时间(毫秒)
+if(redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2])) then
+    return 1
+end
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
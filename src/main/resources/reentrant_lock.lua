@@ -0,0 +1,9 @@
+-- 获取可重入锁：锁不存在或已由自己持有时重入次数加一并设置过期时间
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识  ARGV[2] 过期时间(毫秒)
+-- 获取成功返回nil，失败返回锁的剩余时间(毫秒)
+if(redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return nil
+end
+return redis.call('pttl', KEYS[1])
@@ -0,0 +1,14 @@
+-- 释放可重入锁：重入次数减一，减到0时删除锁并通知等待的线程
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识  ARGV[2] 过期时间(毫秒)  ARGV[3] 通知的频道
+-- 锁不是自己持有返回nil，仍持有返回0，已释放返回1
+if(redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return nil
+end
+local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)
+if(count > 0) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 0
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[3], 'unlock')
+return 1
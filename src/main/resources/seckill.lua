@@ -10,6 +10,20 @@ local orderId = ARGV[3] --订单id
 local stockKey = 'seckill:stock:' .. voucherId -- 保存库存的key
 
 local OrderKey = 'seckill:order:' .. voucherId -- 保存购买用户id的key
+
+local metaKey = 'seckill:meta:' .. voucherId -- 保存秒杀开始、结束时间的key
+-- 判断秒杀时间，时间以redis服务器为准，没有保存时间的优惠券不做判断
+local window = redis.call('hmget', metaKey, 'begin', 'end')
+if(window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        return 3
+    end
+    if(now > tonumber(window[2])) then
+        return 4
+    end
+end
 -- 3.判断库存是否充足
 if(tonumber(redis.call('get', stockKey)) <= 0) then
     return 1
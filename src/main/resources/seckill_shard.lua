@@ -0,0 +1,41 @@
+-- 分段库存模式：在用户所属的分段上判断一人一单、扣减库存并发送订单消息，三步在一个脚本中原子执行
+-- 所有KEYS使用同一个分段的hash tag，在同一个slot上
+-- KEYS[1] 分段库存的key  KEYS[2] 分段下单用户的key  KEYS[3] 分段保存秒杀开始、结束时间的key  KEYS[4] 分段的订单消息队列
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local metaKey = KEYS[3]
+local streamKey = KEYS[4]
+-- ARGV[1] 用户id  ARGV[2] 优惠券id  ARGV[3] 订单id
+local userId = ARGV[1]
+local voucherId = ARGV[2]
+local orderId = ARGV[3]
+
+-- 0.分段库存不存在，说明优惠券是按单key模式初始化的，由调用方改用单key脚本
+if(redis.call('exists', stockKey) == 0) then
+    return 5
+end
+-- 1.判断秒杀时间，时间以redis服务器为准，没有保存时间的优惠券不做判断
+local window = redis.call('hmget', metaKey, 'begin', 'end')
+if(window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        return 3
+    end
+    if(now > tonumber(window[2])) then
+        return 4
+    end
+end
+-- 2.判断用户是否重复下单，其他分段下单的用户也在这里占位
+if(redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+-- 3.本分段库存不足，登记用户占位后由调用方从其他分段扣减，全部不足时撤销占位
+redis.call('sadd', orderKey, userId)
+if(tonumber(redis.call('get', stockKey)) <= 0) then
+    return 6
+end
+-- 4.扣减库存并发送订单消息
+redis.call('incrby', stockKey, -1)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
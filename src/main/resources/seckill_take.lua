@@ -0,0 +1,18 @@
+-- 分段库存模式：用户所属分段库存不足时，从其他分段扣减一个库存，在该分段登记用户并发送订单消息，原子执行
+-- 所有KEYS使用同一个分段的hash tag，在同一个slot上；跨分段的一人一单由所属分段的占位保证
+-- KEYS[1] 其他分段库存的key  KEYS[2] 该分段下单用户的key  KEYS[3] 该分段的订单消息队列
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local streamKey = KEYS[3]
+-- ARGV[1] 用户id  ARGV[2] 优惠券id  ARGV[3] 订单id
+local userId = ARGV[1]
+
+-- 1.该分段库存不足
+if(tonumber(redis.call('get', stockKey) or 0) <= 0) then
+    return 1
+end
+-- 2.扣减库存，登记用户并发送订单消息
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
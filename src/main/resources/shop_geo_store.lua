@@ -0,0 +1,10 @@
+-- 附近商铺的结果缓存：结果不存在时查询半径内的店铺，连同距离保存到有序集合中并设置过期时间，原子执行
+-- KEYS[1] 店铺GEO的key  KEYS[2] 结果缓存的key
+-- ARGV[1] 经度  ARGV[2] 纬度  ARGV[3] 半径(米)  ARGV[4] 最多保存的店铺数  ARGV[5] 过期时间(秒)
+if(redis.call('exists', KEYS[2]) == 1) then
+    return 0
+end
+redis.call('geosearchstore', KEYS[2], KEYS[1], 'FROMLONLAT', ARGV[1], ARGV[2],
+        'BYRADIUS', ARGV[3], 'm', 'ASC', 'COUNT', ARGV[4], 'STOREDIST')
+redis.call('expire', KEYS[2], ARGV[5])
+return 1
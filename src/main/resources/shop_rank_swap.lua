@@ -0,0 +1,18 @@
+-- 店铺排名全量重建完成后，用临时有序集合替换正式的有序集合，原子执行
+-- KEYS[1..2n] 依次为临时key和正式key，KEYS[2n+1..] 需要删除的正式key
+-- ARGV[1] 临时key和正式key的对数n
+local n = tonumber(ARGV[1])
+for i = 1, n do
+    local tmp, key = KEYS[2 * i - 1], KEYS[2 * i]
+    -- 该维度没有店铺时临时key不存在
+    if(redis.call('exists', tmp) == 1) then
+        redis.call('rename', tmp, key)
+        redis.call('persist', key)
+    else
+        redis.call('del', key)
+    end
+end
+for i = 2 * n + 1, #KEYS do
+    redis.call('del', KEYS[i])
+end
+return n
@@ -0,0 +1,6 @@
+-- 释放锁：锁的持有者与当前标识相同才删除，避免误删其他线程的锁
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('del', KEYS[1])
+end
+return 0
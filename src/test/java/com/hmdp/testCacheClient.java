@@ -4,6 +4,7 @@ import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Follow;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
@@ -34,6 +35,48 @@ public class testCacheClient {
         follow.setCreateTime(LocalDateTime.now());
         cacheClient.setWithLogicalExpire("follow:1",follow,100l,TimeUnit.SECONDS);
     }
+    /**
+     * 重建耗时远大于剩余的逻辑过期时间时，XFetch几乎必然在过期前提前刷新
+     */
+    @Test
+    void testEarlyRefresh() throws InterruptedException {
+        int keys = 5;
+        CountDownLatch refreshed = new CountDownLatch(1);
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(10);
+        for (long id = 1; id <= keys; id++) {
+            cacheClient.setWithLogicalExpire("test:early:" + id, new Follow().setId(id),
+                    10L, TimeUnit.SECONDS, TimeUnit.HOURS.toMillis(1));
+        }
+        for (long id = 1; id <= keys; id++) {
+            Follow follow = cacheClient.queryWithEarlyRefresh("test:early:", id, Follow.class, i -> {
+                refreshed.countDown();
+                return new Follow().setId(i);
+            }, 10L, TimeUnit.SECONDS);
+            Assertions.assertEquals(id, follow.getId());
+        }
+        Assertions.assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(LocalDateTime.now().isBefore(expireTime));
+    }
+
+    /**
+     * 一级缓存写入后固定时间过期，频繁读取的key在逻辑过期后仍会触发重建
+     */
+    @Test
+    void testLocalExpireAfterWrite() throws InterruptedException {
+        CountDownLatch refreshed = new CountDownLatch(1);
+        cacheClient.setWithLogicalExpire("test:local:1", new Follow().setId(1L), 1L, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 3000;
+        while (refreshed.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            Follow follow = cacheClient.queryWithLogicalExpire("test:local:", 1L, Follow.class, i -> {
+                refreshed.countDown();
+                return new Follow().setId(i);
+            }, 10L, TimeUnit.SECONDS);
+            Assertions.assertEquals(1L, follow.getId());
+            Thread.sleep(100);
+        }
+        Assertions.assertTrue(refreshed.await(1, TimeUnit.SECONDS));
+    }
+
     private static final ExecutorService executorService = Executors.newFixedThreadPool(500);
     @Test
     void testIdWorker() throws InterruptedException {
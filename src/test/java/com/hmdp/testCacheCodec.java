@@ -0,0 +1,96 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * JSON与二进制编解码器的往返正确性、编码体积和版本兼容
+ */
+public class testCacheCodec {
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec();
+
+    private Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 11, 16, 5, 32));
+    }
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop();
+        assertEquals(shop, json.decode(json.encode(shop), Shop.class));
+        assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+        //二进制编解码器可以读取JSON格式的旧缓存
+        assertEquals(shop, binary.decode(json.encode(shop), Shop.class));
+
+        RedisData data = new RedisData();
+        data.setData(shop);
+        data.setExpireTime(LocalDateTime.now());
+        assertEquals(shop, binary.decodeLogical(binary.encode(data), Shop.class).getData());
+        assertEquals(shop, binary.decodeLogical(json.encode(data), Shop.class).getData());
+    }
+
+    @Test
+    void testCompressedRoundTrip() {
+        //超过压缩阈值的数据
+        Shop shop = shop().setImages(String.join(",", Collections.nCopies(20, shop().getImages())));
+        byte[] bytes = binary.encode(shop);
+        assertTrue(bytes.length < binary.encode(shop().setImages("")).length + shop.getImages().length());
+        assertTrue(binary.canDecode(bytes));
+        assertEquals(shop, binary.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void testVersion() {
+        byte[] bytes = binary.encode(shop());
+        assertTrue(binary.canDecode(bytes));
+        assertTrue(binary.canDecode(json.encode(shop())));
+        //旧版本的二进制数据不能读取，CacheClient会视为未命中
+        bytes[1] = 0;
+        assertFalse(binary.canDecode(bytes));
+    }
+
+    @Test
+    void testUnregisteredType() {
+        //未注册的类型不能写入，也就不会从redis中实例化任意的类
+        RedisData data = new RedisData();
+        data.setData(new Date());
+        data.setExpireTime(LocalDateTime.now());
+        assertThrows(IllegalArgumentException.class, () -> binary.encode(data));
+    }
+
+    @Test
+    void testCompare() {
+        Shop shop = shop();
+        RedisData data = new RedisData();
+        data.setData(shop);
+        data.setExpireTime(LocalDateTime.of(2022, 1, 11, 16, 35, 0));
+        for (CacheCodec codec : new CacheCodec[]{json, binary}) {
+            byte[] logical = codec.encode(data);
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+            assertEquals(shop, codec.decodeLogical(logical, Shop.class).getData());
+            assertEquals(data.getExpireTime(), codec.decodeLogical(logical, Shop.class).getExpireTime());
+        }
+        //二进制格式比JSON更紧凑
+        assertTrue(binary.encode(shop).length < json.encode(shop).length);
+        assertTrue(binary.encode(data).length < json.encode(data).length);
+    }
+}
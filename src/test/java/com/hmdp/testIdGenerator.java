@@ -0,0 +1,66 @@
+package com.hmdp;
+
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 雪花算法ID生成器的多线程耗时，并校验ID唯一且每个线程内单调递增
+ */
+public class testIdGenerator {
+    private static final int PER_THREAD = 200000;
+
+    @Test
+    void testSnowflakeThroughput() throws InterruptedException {
+        //预热
+        run(4, false);
+        for (int threads : new int[]{1, 4, 16}) {
+            System.out.println(threads + " threads: " + run(threads, false) + " ns/op");
+        }
+    }
+
+    @Test
+    void testSnowflakeUnique() throws InterruptedException {
+        run(8, true);
+    }
+
+    private double run(int threads, boolean check) throws InterruptedException {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1);
+        Set<Long> ids = check ? ConcurrentHashMap.newKeySet() : null;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        AtomicBoolean failed = new AtomicBoolean();
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            executor.submit(() -> {
+                long prev = 0;
+                try {
+                    for (int i = 0; i < PER_THREAD; i++) {
+                        long id = generator.nextId("order");
+                        if (check && (id <= prev || !ids.add(id))) {
+                            failed.set(true);
+                        }
+                        prev = id;
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.nanoTime() - begin;
+        executor.shutdown();
+        Assertions.assertFalse(failed.get(), "ID重复或没有递增");
+        if (check) {
+            Assertions.assertEquals(threads * PER_THREAD, ids.size());
+        }
+        return (double) cost / (threads * (long) PER_THREAD);
+    }
+}
@@ -0,0 +1,139 @@
+package com.hmdp;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisLockFactory;
+import com.hmdp.utils.RedisScriptRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 多线程竞争同一把锁，对比ReentrantRedisLock与Redisson的RLock的耗时，并校验互斥和可重入
+ */
+@SpringBootTest
+public class testRedisLock {
+    private static final int LOOP = 200;
+
+    @Resource
+    RedisLockFactory redisLockFactory;
+    @Resource
+    RedissonClient redissonClient;
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    //被锁保护的计数器，不加锁时并发自增会丢失更新
+    private int counter;
+
+    @Test
+    void testReentrant() throws InterruptedException {
+        ILock lock = redisLockFactory.getLock("test:reentrant");
+        Assertions.assertTrue(lock.tryLock(1, TimeUnit.SECONDS));
+        Assertions.assertTrue(lock.tryLock(1, TimeUnit.SECONDS));
+        lock.unlock();
+        lock.unlock();
+        Assertions.assertThrows(IllegalMonitorStateException.class, lock::unlock);
+    }
+
+    /**
+     * 第一次获取失败之后、开始等待之前锁被释放，释放消息不能丢失，等待线程应立即获取到锁而不是等到锁过期
+     */
+    @Test
+    void testReleaseBeforeWait() throws InterruptedException {
+        String name = "test:release-before-wait";
+        List<String> keys = Collections.singletonList(RedisConstants.LOCK_KEY + name);
+        String channel = RedisConstants.LOCK_CHANNEL_PREFIX + name;
+        String holder = "test-holder";
+        RedisLockFactory factory = new RedisLockFactory();
+        AtomicBoolean releaseOnFailure = new AtomicBoolean(true);
+        //第一次获取失败返回前，由持有者释放锁并把释放消息投递给factory
+        RedisScriptRegistry registry = new RedisScriptRegistry() {
+            @Override
+            public Long execute(String script, List<String> scriptKeys, String... args) {
+                Long res = scriptRegistry.execute(script, scriptKeys, args);
+                if (RedisScriptRegistry.REENTRANT_LOCK.equals(script) && res != null
+                        && releaseOnFailure.compareAndSet(true, false)) {
+                    scriptRegistry.execute(RedisScriptRegistry.REENTRANT_UNLOCK, keys,
+                            holder, String.valueOf(RedisConstants.LOCK_WATCHDOG_TIMEOUT), channel);
+                    factory.onMessage(new DefaultMessage(channel.getBytes(StandardCharsets.UTF_8),
+                            "0".getBytes(StandardCharsets.UTF_8)), null);
+                }
+                return res;
+            }
+        };
+        ReflectionTestUtils.setField(factory, "scriptRegistry", registry);
+        Assertions.assertNull(scriptRegistry.execute(RedisScriptRegistry.REENTRANT_LOCK, keys,
+                holder, String.valueOf(RedisConstants.LOCK_WATCHDOG_TIMEOUT)));
+
+        ILock lock = factory.getLock(name);
+        long begin = System.nanoTime();
+        //锁的剩余时间是30秒，等待5秒，只有收到释放消息才能获取成功
+        Assertions.assertTrue(lock.tryLock(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(1));
+        Assertions.assertFalse(releaseOnFailure.get());
+        lock.unlock();
+    }
+
+    @Test
+    void testContention() throws InterruptedException {
+        for (int threads : new int[]{1, 4, 16}) {
+            ILock lock = redisLockFactory.getLock("test:contention");
+            long mine = run(threads, () -> {
+                if (!lock.tryLock(10, TimeUnit.SECONDS)) throw new IllegalStateException("获取锁超时");
+            }, lock::unlock);
+            RLock rLock = redissonClient.getLock("lock:test:redisson");
+            long redisson = run(threads, () -> {
+                if (!rLock.tryLock(10, TimeUnit.SECONDS)) throw new IllegalStateException("获取锁超时");
+            }, rLock::unlock);
+            System.out.println(threads + " threads: ReentrantRedisLock " + mine + " us/op, RLock " + redisson + " us/op");
+        }
+    }
+
+    private interface LockAction {
+        void run() throws InterruptedException;
+    }
+
+    private long run(int threads, LockAction lock, Runnable unlock) throws InterruptedException {
+        counter = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < LOOP; i++) {
+                        lock.run();
+                        try {
+                            counter++;
+                        } finally {
+                            unlock.run();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.nanoTime() - begin;
+        executor.shutdown();
+        Assertions.assertEquals(threads * LOOP, counter);
+        return cost / 1000 / ((long) threads * LOOP);
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisScriptRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比lua脚本与多条命令实现的加锁、续期、释放锁的耗时
+ */
+@SpringBootTest
+public class testRedisScript {
+    private static final String KEY = "lock:test:script";
+    private static final String OWNER = "owner";
+    private static final int LOOP = 10000;
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    RedisScriptRegistry scriptRegistry;
+
+    @Test
+    void testUnlock() {
+        //预热
+        multiCommandUnlock(1000);
+        scriptUnlock(1000);
+        System.out.println("GET + DEL unlock: " + multiCommandUnlock(LOOP) + " us/op");
+        System.out.println("EVALSHA unlock:   " + scriptUnlock(LOOP) + " us/op");
+    }
+
+    @Test
+    void testRenew() {
+        stringRedisTemplate.opsForValue().set(KEY, OWNER, 30, TimeUnit.SECONDS);
+        multiCommandRenew(1000);
+        scriptRenew(1000);
+        System.out.println("GET + PEXPIRE renew: " + multiCommandRenew(LOOP) + " us/op");
+        System.out.println("EVALSHA renew:       " + scriptRenew(LOOP) + " us/op");
+        stringRedisTemplate.delete(KEY);
+    }
+
+    @Test
+    void testNoScript() {
+        //清空脚本缓存后仍然可以执行
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.scriptingCommands().scriptFlush();
+            return null;
+        });
+        stringRedisTemplate.opsForValue().set(KEY, OWNER);
+        Long res = scriptRegistry.execute(RedisScriptRegistry.UNLOCK, Collections.singletonList(KEY), OWNER);
+        Assertions.assertEquals(1L, res);
+    }
+
+    private double multiCommandUnlock(int loop) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < loop; i++) {
+            stringRedisTemplate.opsForValue().setIfAbsent(KEY, OWNER, 30, TimeUnit.SECONDS);
+            if (OWNER.equals(stringRedisTemplate.opsForValue().get(KEY))) {
+                stringRedisTemplate.delete(KEY);
+            }
+        }
+        return (System.nanoTime() - begin) / 1000.0 / loop;
+    }
+
+    private double scriptUnlock(int loop) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < loop; i++) {
+            stringRedisTemplate.opsForValue().setIfAbsent(KEY, OWNER, 30, TimeUnit.SECONDS);
+            scriptRegistry.execute(RedisScriptRegistry.UNLOCK, Collections.singletonList(KEY), OWNER);
+        }
+        return (System.nanoTime() - begin) / 1000.0 / loop;
+    }
+
+    private double multiCommandRenew(int loop) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < loop; i++) {
+            if (OWNER.equals(stringRedisTemplate.opsForValue().get(KEY))) {
+                stringRedisTemplate.expire(KEY, 30, TimeUnit.SECONDS);
+            }
+        }
+        return (System.nanoTime() - begin) / 1000.0 / loop;
+    }
+
+    private double scriptRenew(int loop) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < loop; i++) {
+            scriptRegistry.execute(RedisScriptRegistry.LOCK_RENEW, Collections.singletonList(KEY), OWNER, "30000");
+        }
+        return (System.nanoTime() - begin) / 1000.0 / loop;
+    }
+}
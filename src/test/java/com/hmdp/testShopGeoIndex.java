@@ -0,0 +1,112 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.ShopGeoIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 随机生成店铺坐标，对比本地空间索引与redis GEOSEARCH的查询结果和耗时
+ */
+@SpringBootTest
+public class testShopGeoIndex {
+    private static final String KEY = "test:shop:geo";
+    private static final long TYPE_ID = 0L;
+    private static final int SHOPS = 100000;
+    private static final int QUERIES = 2000;
+    private static final double RADIUS = 3000;
+    private static final int LIMIT = 50;
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    @AfterEach
+    void clean() {
+        stringRedisTemplate.delete(KEY);
+    }
+
+    @Test
+    void testSearch() {
+        Random random = new Random(42);
+        ShopGeoIndex index = new ShopGeoIndex();
+        List<Shop> shops = new ArrayList<>(SHOPS);
+        Map<String, Point> points = new HashMap<>(SHOPS);
+        //杭州附近约50公里见方的范围
+        for (long id = 1; id <= SHOPS; id++) {
+            double x = 119.9 + random.nextDouble() * 0.5;
+            double y = 30.1 + random.nextDouble() * 0.5;
+            shops.add(new Shop().setId(id).setTypeId(TYPE_ID).setX(x).setY(y));
+            points.put(String.valueOf(id), new Point(x, y));
+        }
+        index.addAll(shops);
+        index.markReady();
+        stringRedisTemplate.opsForGeo().add(KEY, points);
+
+        double[][] queries = new double[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = new double[]{119.9 + random.nextDouble() * 0.5, 30.1 + random.nextDouble() * 0.5};
+        }
+        //结果一致性：redis按52位geohash保存坐标，距离有不到1米的误差，半径边界上的店铺可能相差一个
+        for (int i = 0; i < 100; i++) {
+            ShopGeoIndex.Hits hits = index.search(TYPE_ID, queries[i][0], queries[i][1], RADIUS, LIMIT);
+            List<GeoResult<RedisGeoCommands.GeoLocation<String>>> results = geoSearch(queries[i]);
+            Assertions.assertTrue(Math.abs(results.size() - hits.size()) <= 1);
+            for (int j = 0; j < Math.min(results.size(), hits.size()); j++) {
+                Assertions.assertEquals(results.get(j).getDistance().getValue(), hits.distances[j], 1.0);
+            }
+        }
+
+        long begin = System.nanoTime();
+        for (double[] q : queries) {
+            index.search(TYPE_ID, q[0], q[1], RADIUS, LIMIT);
+        }
+        long local = (System.nanoTime() - begin) / QUERIES;
+        begin = System.nanoTime();
+        for (double[] q : queries) {
+            geoSearch(q);
+        }
+        long redis = (System.nanoTime() - begin) / QUERIES;
+        System.out.println("ShopGeoIndex " + local / 1000 + " us/op, GEOSEARCH " + redis / 1000 + " us/op");
+    }
+
+    @Test
+    void testPoleAndAntimeridian() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        List<Shop> shops = new ArrayList<>();
+        shops.add(new Shop().setId(1L).setTypeId(TYPE_ID).setX(179.999).setY(0.0));
+        shops.add(new Shop().setId(2L).setTypeId(TYPE_ID).setX(-179.999).setY(0.0));
+        shops.add(new Shop().setId(3L).setTypeId(TYPE_ID).setX(0.0).setY(89.9999));
+        shops.add(new Shop().setId(4L).setTypeId(TYPE_ID).setX(180.0).setY(89.9999));
+        index.addAll(shops);
+        index.markReady();
+        //跨越±180°的查询能找到另一侧的店铺
+        ShopGeoIndex.Hits hits = index.search(TYPE_ID, -179.9995, 0, RADIUS, LIMIT);
+        Assertions.assertEquals(2, hits.size());
+        //极点附近的查询覆盖整个纬度带，不会遍历数量巨大的网格
+        long begin = System.nanoTime();
+        hits = index.search(TYPE_ID, 90, 90, RADIUS, LIMIT);
+        Assertions.assertEquals(2, hits.size());
+        Assertions.assertTrue(System.nanoTime() - begin < 1_000_000_000L);
+    }
+
+    private List<GeoResult<RedisGeoCommands.GeoLocation<String>>> geoSearch(double[] q) {
+        return stringRedisTemplate.opsForGeo().search(KEY, GeoReference.fromCoordinate(q[0], q[1]),
+                new Distance(RADIUS), RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs()
+                        .limit(LIMIT).includeDistance().sortAscending()).getContent();
+    }
+}
@@ -0,0 +1,61 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.ShopSearchIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 店铺名称索引的汉字、拼音、首字母匹配，以及按评分排序和增删改
+ */
+public class testShopSearchIndex {
+
+    private ShopSearchIndex index() {
+        ShopSearchIndex index = new ShopSearchIndex();
+        index.addAll(Arrays.asList(
+                new Shop().setId(1L).setName("海底捞火锅(拱墅店)").setScore(47),
+                new Shop().setId(2L).setName("小龙坎火锅").setScore(45),
+                new Shop().setId(3L).setName("KFC 肯德基").setScore(40),
+                new Shop().setId(4L).setName("海底捞").setScore(49)));
+        return index;
+    }
+
+    @Test
+    void testSearch() {
+        ShopSearchIndex index = index();
+        assertEquals(Arrays.asList(1L, 2L), index.search("火锅", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("底捞火", 0, 10));
+        assertEquals(Arrays.asList(4L, 1L), index.search("海", 0, 10));
+        assertEquals(Arrays.asList(1L, 2L), index.search("huoguo", 0, 10));
+        assertEquals(Arrays.asList(4L, 1L), index.search("hdl", 0, 10));
+        assertEquals(Collections.singletonList(3L), index.search("kfc", 0, 10));
+        //空白字符与LIKE一样参与匹配，不会被忽略
+        assertEquals(Collections.emptyList(), index.search("海底 捞", 0, 10));
+        assertEquals(Collections.singletonList(3L), index.search("KFC 肯", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("火锅", 0, 1));
+        assertEquals(Collections.singletonList(2L), index.search("火锅", 1, 10));
+    }
+
+    @Test
+    void testSuggest() {
+        ShopSearchIndex index = index();
+        List<String> names = index.suggest("hai", 10);
+        assertEquals(Arrays.asList("海底捞", "海底捞火锅(拱墅店)"), names);
+        assertEquals(Collections.singletonList("KFC 肯德基"), index.suggest("kf", 10));
+    }
+
+    @Test
+    void testUpdate() {
+        ShopSearchIndex index = index();
+        index.remove(4L);
+        assertEquals(Collections.singletonList(1L), index.search("haidilao", 0, 10));
+        index.upsert(new Shop().setId(1L).setName("新店").setScore(1));
+        assertEquals(Collections.emptyList(), index.search("haidilao", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("xd", 0, 10));
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmdp;
+
+import com.hmdp.utils.StreamBatchConsumer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比不同消费者数量下订单消息队列的吞吐量
+ * 每批消息模拟一次数据库事务的耗时
+ */
+@SpringBootTest
+public class testStreamConsumer {
+    private static final String STREAM = "stream.orders.test";
+    private static final String GROUP = "g1";
+    private static final int TOTAL = 20000;
+    private static final int BATCH_SIZE = 100;
+    //模拟一次批量写库事务的耗时(毫秒)
+    private static final long TX_MILLIS = 5;
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testThroughput() throws InterruptedException {
+        for (int consumers : new int[]{1, 4, 16}) {
+            System.out.println(consumers + " consumers: " + run(consumers) + " orders/s");
+        }
+    }
+
+    private long run(int consumers) throws InterruptedException {
+        stringRedisTemplate.delete(STREAM);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < TOTAL; i++) {
+                conn.xAdd(STREAM, Map.of("userId", String.valueOf(i), "voucherId", "1", "id", String.valueOf(i)));
+            }
+            return null;
+        });
+        CountDownLatch latch = new CountDownLatch(TOTAL);
+        StreamBatchConsumer consumer = new StreamBatchConsumer(stringRedisTemplate, new SimpleMeterRegistry(), STREAM, GROUP,
+                "test", consumers, BATCH_SIZE, records -> {
+            try {
+                Thread.sleep(TX_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            records.forEach(r -> latch.countDown());
+        });
+        long begin = System.currentTimeMillis();
+        consumer.start();
+        latch.await(60, TimeUnit.SECONDS);
+        long cost = Math.max(1, System.currentTimeMillis() - begin);
+        consumer.stop();
+        stringRedisTemplate.delete(STREAM);
+        return TOTAL * 1000L / cost;
+    }
+}